@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to announce the presence of this user on the subnet.
+ * <p>
+ * An announce is made right after {@linkplain trigger()} is called, e.g. when
+ * the state changes or a new network appears. While nothing changes, the
+ * interval doubles after every announce, from {@value #MIN_INTERVAL_MILLIS}
+ * up to {@value #MAX_INTERVAL_MILLIS} milliseconds. The maximum is stretched
+ * further by the square root of the number of visible peers, so the total
+ * traffic of a subnet grows slower than the number of peers. Every delay has
+ * a random jitter of {@value #JITTER_PERCENT}% to keep peers from announcing
+ * in lock step.</p>
+ */
+class AnnounceScheduler {
+
+    public static final int MIN_INTERVAL_MILLIS = 1_000;
+    public static final int MAX_INTERVAL_MILLIS = 30_000;
+    public static final int MAX_STRETCHED_INTERVAL_MILLIS = 120_000;
+    public static final int TRIGGER_DELAY_MILLIS = 100;
+    public static final int JITTER_PERCENT = 20;
+    // peers per step of stretching the maximum interval
+    public static final int PEERS_PER_STEP = 16;
+
+    private final Runnable mAnnounce;
+    private final ScheduledExecutorService mSchedular;
+    private final Random mRandom;
+    private ScheduledFuture<?> mNext;
+    private long mInterval;
+    private int mGeneration;
+    private volatile int mPeerCount;
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param announce the task to announce
+     * @param schedular the executor to run the task
+     */
+    AnnounceScheduler(Runnable announce, ScheduledExecutorService schedular) {
+        mAnnounce = announce;
+        mSchedular = schedular;
+        mRandom = new Random();
+        mInterval = MIN_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Announces soon, and starts over with the shortest interval.
+     */
+    synchronized void trigger() {
+        mInterval = MIN_INTERVAL_MILLIS;
+        schedule(jitter(TRIGGER_DELAY_MILLIS));
+    }
+
+    /**
+     * Stops the future announces.
+     */
+    synchronized void stop() {
+        mGeneration++;
+        if (mNext != null) {
+            mNext.cancel(false);
+            mNext = null;
+        }
+    }
+
+    /**
+     * Sets the number of peers currently visible.
+     *
+     * @param count number of peers
+     */
+    void setPeerCount(int count) {
+        mPeerCount = count;
+    }
+
+    /**
+     * Gets the longest interval between two announces for the current number
+     * of peers.
+     *
+     * @return interval in milliseconds
+     */
+    long getMaxInterval() {
+        double steps = Math.sqrt(Math.max(1.0, (double) mPeerCount / PEERS_PER_STEP));
+        return Math.min(MAX_STRETCHED_INTERVAL_MILLIS, (long) (MAX_INTERVAL_MILLIS * steps));
+    }
+
+    /**
+     * Gets the interval to wait after the current announce, and doubles it.
+     *
+     * @return interval in milliseconds, without the jitter
+     */
+    synchronized long nextInterval() {
+        long interval = mInterval;
+        mInterval = Math.min(getMaxInterval(), mInterval * 2);
+        return Math.min(getMaxInterval(), interval);
+    }
+
+    // add a random jitter to a delay
+    long jitter(long delay) {
+        double factor = 1 + (mRandom.nextDouble() * 2 - 1) * JITTER_PERCENT / 100.0;
+        return (long) (delay * factor);
+    }
+
+    private void schedule(long delay) {
+        if (mSchedular.isShutdown()) {
+            return;
+        }
+        if (mNext != null) {
+            mNext.cancel(false);
+        }
+        int generation = ++mGeneration;
+        mNext = mSchedular.schedule(() -> run(generation), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(int generation) {
+        mAnnounce.run();
+        synchronized (this) {
+            // unless it was triggered or stopped meanwhile
+            if (generation == mGeneration && mNext != null) {
+                schedule(jitter(nextInterval()));
+            }
+        }
+    }
+}
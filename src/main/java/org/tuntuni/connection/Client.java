@@ -17,12 +17,15 @@ package org.tuntuni.connection;
 
 import java.net.InetSocketAddress;
 import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import org.tuntuni.Core;
 import org.tuntuni.models.ConnectFor;
+import org.tuntuni.models.DiscoveryData;
 import org.tuntuni.models.Message;
 import org.tuntuni.models.UserData;
 
@@ -35,7 +38,13 @@ public class Client extends TCPClient {
     static final int MAX_MESSAGE_QUEUE = 100;
 
     // local data from server 
-    private int mState;
+    private volatile int mState;
+    private volatile boolean mSubscribed;
+    private volatile int mProfileHash;
+    private volatile long mLastSeen;
+    private volatile boolean mShown;
+    private CompletableFuture<UserData> mDownload;
+    private int mDownloadState;
     private final IntegerProperty mUnseenCount;
     private final LinkedList<Message> mMessages;
     private final ObjectProperty<UserData> mUserData;
@@ -89,13 +98,174 @@ public class Client extends TCPClient {
      * @param state
      */
     public void downloadProfile(int state) {
-        Object data = request(ConnectFor.PROFILE, state);
-        if (data != null && data instanceof UserData) {
+        try {
+            downloadProfileAsync(state).join();
+        } catch (CompletionException ex) {
+            // the profile stays unchanged
+        }
+    }
+
+    /**
+     * Downloads the user profile without blocking the caller.
+     * <p>
+     * A download of the same state that is already waiting or running is
+     * shared, so repeated announces of the user cause only one download. The
+     * download is started by the {@link ProfileFetcher}, which limits the
+     * number of downloads running together.</p>
+     *
+     * @param state the discovery state of the user
+     * @return the future user data downloaded
+     */
+    public synchronized CompletableFuture<UserData> downloadProfileAsync(int state) {
+        if (mDownload != null && !mDownload.isDone() && mDownloadState == state) {
+            return mDownload;
+        }
+        mDownloadState = state;
+        mDownload = ProfileFetcher.instance().submit(this, state);
+        return mDownload;
+    }
+
+    /**
+     * Downloads the user profile at once.
+     * <p>
+     * The version of the profile already downloaded is sent along, and the
+     * server only sends the profile back if it has a newer one.</p>
+     *
+     * @param state the discovery state of the user
+     * @return the future user data downloaded
+     */
+    CompletableFuture<UserData> fetchProfile(int state) {
+        UserData cached = getUserData();
+        CompletableFuture<Object> request = (cached == null)
+                ? requestAsync(ConnectFor.PROFILE, state)
+                : requestAsync(ConnectFor.PROFILE, state, cached.getVersion());
+        return cancelling(request.thenApplyAsync((data) -> {
+            UserData profile;
+            if (data == RpcStatus.NOT_MODIFIED && cached != null) {
+                profile = cached;
+            } else if (data instanceof UserData) {
+                profile = (UserData) data;
+                mProfileHash = profile.contentHash();
+                setUserData(profile);
+                // the server may have lost our subscription
+                mSubscribed = false;
+            } else {
+                throw new CompletionException(new Exception("Invalid profile"));
+            }
             setState(state);
             setConnected(true);
-            UserData profile = (UserData) data;
+            subscribe();
+            return profile;
+        }, executor()), request);
+    }
+
+    /**
+     * Asks the server to push the changes of the user profile.
+     */
+    void subscribe() {
+        if (mSubscribed) {
+            return;
+        }
+        mSubscribed = true;
+        requestAsync(ConnectFor.SUBSCRIBE).whenComplete((res, err) -> {
+            if (err != null || res instanceof Exception) {
+                mSubscribed = false;
+            }
+        });
+    }
+
+    /**
+     * Applies the changed fields of the user profile pushed by the server.
+     * <p>
+     * The changes are applied only on the version they were made from. If an
+     * update was missed in between, the profile is downloaded again instead.
+     * Updates older than the profile are ignored.</p>
+     *
+     * @param changes the changed fields
+     * @param base the version of the profile the changes were made from
+     * @return {@code false} if there is no profile to apply the changes to.
+     */
+    boolean updateProfile(UserData changes, long base) {
+        UserData current = getUserData();
+        if (current == null) {
+            return false;
+        }
+        if (changes.getVersion() <= current.getVersion()) {
+            return true;
+        }
+        if (base == current.getVersion()) {
+            UserData profile = current.merge(changes);
+            mProfileHash = profile.contentHash();
             setUserData(profile);
+        } else {
+            downloadProfileAsync(getState());
         }
+        return true;
+    }
+
+    /**
+     * Checks if the downloaded profile is the one announced by the user.
+     *
+     * @param dd the discovery data sent by the user
+     * @return
+     */
+    public boolean isProfileCurrent(DiscoveryData dd) {
+        UserData current = getUserData();
+        if (current == null) {
+            return false;
+        }
+        if (dd.getProfileVersion() != 0 && dd.getProfileVersion() == current.getVersion()) {
+            return true;
+        }
+        return dd.hasFlag(DiscoveryData.FLAG_PROFILE_HASH)
+                && dd.getProfileHash() == mProfileHash;
+    }
+
+    /**
+     * Gets the last time the user has announced itself.
+     *
+     * @return time in milliseconds
+     */
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+
+    void setLastSeen(long time) {
+        mLastSeen = time;
+    }
+
+    /**
+     * Sets the data of a user found in an earlier run. It stays not connected
+     * until the profile is downloaded again.
+     *
+     * @param profile the profile downloaded last
+     * @param state the discovery state of the user
+     * @param lastSeen the last time the user was seen
+     */
+    void restore(UserData profile, int state, long lastSeen) {
+        mProfileHash = profile.contentHash();
+        mState = state;
+        mLastSeen = lastSeen;
+        setUserData(profile);
+    }
+
+    /**
+     * Checks if the user is shown on the screen.
+     *
+     * @return
+     */
+    public boolean isShown() {
+        return mShown;
+    }
+
+    /**
+     * Sets if the user is shown on the screen. Profiles of the users shown
+     * are downloaded before the others.
+     *
+     * @param shown
+     */
+    public void setShown(boolean shown) {
+        mShown = shown;
     }
 
     public void setState(int state) {
@@ -138,11 +308,21 @@ public class Client extends TCPClient {
      * @throws java.lang.Exception
      */
     public void sendMessage(Message message) throws Exception {
-        Exception ex = (Exception) request(ConnectFor.MESSAGE, message);
-        if (ex != null) {
-            throw ex;
-        }
-        addMessage(message);
+        await(sendMessageAsync(message));
+    }
+
+    /**
+     * Send a message to this client without blocking the caller.
+     *
+     * @param message Message to be sent
+     * @return completes when the message was accepted by the receiver
+     */
+    public CompletableFuture<Void> sendMessageAsync(Message message) {
+        CompletableFuture<Object> request = requestAsync(ConnectFor.MESSAGE, message);
+        return cancelling(request.thenAcceptAsync((res) -> {
+            checkResponse(res);
+            addMessage(message);
+        }, executor()), request);
     }
 
     public void decreaseUnseen() {
@@ -168,9 +348,38 @@ public class Client extends TCPClient {
      * @throws Exception
      */
     public void callRequest(ConnectFor req, Exception data) throws Exception {
-        Exception res = (Exception) request(req, data);
-        if (res != null) {
-            throw res;
+        await(callRequestAsync(req, data));
+    }
+
+    /**
+     * Sends a call request without blocking the caller.
+     *
+     * @param req
+     * @param data
+     * @return completes when the request was accepted by the receiver
+     */
+    public CompletableFuture<Void> callRequestAsync(ConnectFor req, Exception data) {
+        CompletableFuture<Object> request = requestAsync(req, data);
+        return cancelling(request.thenAcceptAsync(
+                (res) -> checkResponse(res), executor()), request);
+    }
+
+    // an exception sent by the server means the request has failed
+    private static void checkResponse(Object res) {
+        if (res instanceof Exception) {
+            throw new CompletionException((Exception) res);
+        }
+    }
+
+    // wait for the future and throw the exception it failed with
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
         }
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.tuntuni.models.Logs;
+
+/**
+ * Drives all outgoing {@link PeerConnection}s on a single selector thread.
+ * <p>
+ * Connections that fail to connect within {@value #CONNECT_TIMEOUT_MILLIS}
+ * milliseconds, or stay idle for longer than {@link TCPClient#ALIVE_PERIOD},
+ * are closed.</p>
+ */
+class ConnectionPool implements Runnable {
+
+    public static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    public static final int SWEEP_INTERVAL_MILLIS = 250;
+
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks;
+    private final Thread mThread;
+
+    private ConnectionPool() throws IOException {
+        mSelector = Selector.open();
+        mTasks = new ConcurrentLinkedQueue<>();
+        mThread = new Thread(this, "ConnectionPool");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Opens a new connection to the given address.
+     *
+     * @param address address of the server
+     * @return
+     */
+    PeerConnection open(InetSocketAddress address) {
+        PeerConnection conn = new PeerConnection(this, address);
+        execute(() -> {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key;
+                if (channel.connect(address)) {
+                    key = channel.register(mSelector, SelectionKey.OP_READ, conn);
+                } else {
+                    key = channel.register(mSelector, SelectionKey.OP_CONNECT, conn);
+                }
+                conn.register(channel, key);
+                flush(conn);
+            } catch (IOException ex) {
+                conn.close(ex);
+            }
+        });
+        return conn;
+    }
+
+    /**
+     * Requests the pool to write the queued data of a connection.
+     *
+     * @param conn the connection to flush
+     */
+    void flush(PeerConnection conn) {
+        execute(() -> {
+            SelectionKey key = conn.key();
+            if (key != null && key.isValid() && conn.channel().isConnected()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    /**
+     * Closes a connection, failing all of its pending requests.
+     *
+     * @param conn the connection to close
+     */
+    void close(PeerConnection conn) {
+        execute(() -> conn.close(new EOFException("Connection closed")));
+    }
+
+    // run a task in the selector thread
+    private void execute(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (mSelector.isOpen()) {
+            try {
+                mSelector.select(SWEEP_INTERVAL_MILLIS);
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    processKey(key);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                    sweep(now);
+                    lastSweep = now;
+                }
+            } catch (Exception ex) {
+                Logs.error(getClass(), "Selector failure. {0}", ex);
+            }
+        }
+    }
+
+    // process a selection key
+    private void processKey(SelectionKey key) {
+        PeerConnection conn = (PeerConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                conn.channel().finishConnect();
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            if (key.isValid() && key.isReadable()) {
+                conn.read();
+            }
+            if (key.isValid() && key.isWritable() && conn.write()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException ex) {
+            conn.close(ex);
+        }
+    }
+
+    // close failed and idle connections, and fail the timed out requests
+    private void sweep(long now) {
+        long nanos = System.nanoTime();
+        for (SelectionKey key : mSelector.keys()) {
+            PeerConnection conn = (PeerConnection) key.attachment();
+            conn.expire(nanos);
+            if (conn.isConnectingSince(now - CONNECT_TIMEOUT_MILLIS)) {
+                conn.close(new SocketTimeoutException("Connect timed out"));
+            } else if (conn.isIdleSince(now - TCPClient.ALIVE_PERIOD)) {
+                conn.close(new EOFException("Connection closed"));
+            }
+        }
+    }
+
+    /**
+     * Gets the instance of the pool.
+     *
+     * @return
+     */
+    static ConnectionPool instance() {
+        return PoolHolder.INSTANCE;
+    }
+
+    // instance of the pool
+    private static class PoolHolder {
+
+        private static final ConnectionPool INSTANCE = create();
+
+        private static ConnectionPool create() {
+            try {
+                return new ConnectionPool();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Failed to open selector", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the CPU time used by the thread running a stream.
+ */
+final class CpuMeter {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private volatile Thread mThread;
+    private volatile long mStart;
+    private volatile long mUsed;
+
+    /**
+     * Starts measuring the current thread.
+     */
+    void start() {
+        mStart = THREADS.isCurrentThreadCpuTimeSupported()
+                ? THREADS.getCurrentThreadCpuTime() : -1;
+        mThread = Thread.currentThread();
+    }
+
+    /**
+     * Stops measuring. Must be called by the thread measured.
+     */
+    void stop() {
+        if (mThread != null && mStart >= 0) {
+            mUsed = THREADS.getCurrentThreadCpuTime() - mStart;
+        }
+        mThread = null;
+    }
+
+    /**
+     * Gets the CPU time used.
+     *
+     * @return nanoseconds, or -1 if not supported.
+     */
+    long getNanos() {
+        if (mStart < 0) {
+            return -1;
+        }
+        Thread thread = mThread;
+        if (thread != null) {
+            long now = THREADS.getThreadCpuTime(thread.getId());
+            return now < 0 ? mUsed : now - mStart;
+        }
+        return mUsed;
+    }
+}
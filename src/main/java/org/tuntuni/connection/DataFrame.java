@@ -19,43 +19,182 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.util.Arrays; 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import org.tuntuni.util.BufferPool;
 
 /**
  * Single data frame
+ * <p>
+ * Every frame counts its users: whoever keeps it calls {@link #retain()},
+ * and everyone calls {@link #release()} when done. The last release clears
+ * the data, whether it was leased or set by {@link #setBuffer}, and releasing
+ * more often than that throws. The data may be leased from a
+ * {@link BufferPool} by {@link #lease}; the buffer then goes back to the pool
+ * on the last release. The buffer may be longer than the data, so always read
+ * it up to {@link #getLength()}.</p>
  */
 public class DataFrame implements Externalizable {
 
+    // frame types on a stream. never change the existing numbers.
+    public static final byte TYPE_DATA = 0;
+    public static final byte TYPE_IMAGE = 1;
+
+    private static final AtomicIntegerFieldUpdater<DataFrame> REFS
+            = AtomicIntegerFieldUpdater.newUpdater(DataFrame.class, "mRefs");
+
     private byte[] mBuffer;
+    private int mLength;
+    private int mSequence;
+    private long mTimestamp;
+    // the leased buffer and its pool, or null
+    private ByteBuffer mLease;
+    private BufferPool mPool;
+    private volatile int mRefs = 1;
 
     public DataFrame() {
     }
 
     public DataFrame(byte[] data, int size) {
-        mBuffer = Arrays.copyOf(data, size);
+        lease(BufferPool.instance(), size);
+        System.arraycopy(data, 0, mBuffer, 0, size);
     }
 
     @Override
     public void writeExternal(ObjectOutput oo) throws IOException {
-        oo.writeInt(mBuffer.length);
-        oo.write(mBuffer);
+        oo.writeInt(mLength);
+        oo.write(mBuffer, 0, mLength);
     }
 
     @Override
     public void readExternal(ObjectInput oi) throws IOException, ClassNotFoundException {
-        mBuffer = new byte[oi.readInt()];
-        oi.readFully(mBuffer);
+        lease(BufferPool.instance(), oi.readInt());
+        oi.readFully(mBuffer, 0, mLength);
+    }
+
+    /**
+     * Takes a buffer from a heap pool to hold the data. Any buffer leased
+     * before is given back.
+     *
+     * @param pool the pool
+     * @param length length of the data
+     */
+    public final void lease(BufferPool pool, int length) {
+        if (pool.isDirect()) {
+            throw new IllegalArgumentException("Frames need a heap pool");
+        }
+        giveBack();
+        mPool = pool;
+        mLease = pool.acquire(length);
+        mBuffer = mLease.array();
+        mLength = length;
+    }
+
+    /**
+     * Adds a user of the frame.
+     *
+     * @return this frame
+     */
+    public DataFrame retain() {
+        REFS.incrementAndGet(this);
+        return this;
+    }
+
+    /**
+     * Removes a user of the frame. The last one clears the data and gives a
+     * leased buffer back to its pool; the frame must not be used after.
+     *
+     * @throws IllegalStateException if the frame was already released by all
+     * of its users.
+     */
+    public void release() {
+        int refs = REFS.decrementAndGet(this);
+        if (refs == 0) {
+            giveBack();
+            mBuffer = null;
+            mLength = 0;
+        } else if (refs < 0) {
+            throw new IllegalStateException("Frame released too often");
+        }
+    }
+
+    private void giveBack() {
+        if (mLease != null) {
+            mPool.release(mLease);
+            mLease = null;
+            mPool = null;
+        }
+    }
+
+    public boolean isLeased() {
+        return mLease != null;
     }
 
+    /**
+     * Gets the array holding the data. It may be longer than the data.
+     *
+     * @return
+     */
     public byte[] getBuffer() {
         return mBuffer;
     }
 
     public int getLength() {
-        return mBuffer == null ? 0 : mBuffer.length;
+        return mLength;
+    }
+
+    /**
+     * Sets the length of the data in the buffer.
+     *
+     * @param length the length; at most the length of the buffer
+     */
+    public void setLength(int length) {
+        if (length < 0 || length > (mBuffer == null ? 0 : mBuffer.length)) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        mLength = length;
     }
 
     public final void setBuffer(byte[] data) {
+        giveBack();
         mBuffer = data;
+        mLength = data == null ? 0 : data.length;
+    }
+
+    /**
+     * Gets the type of the frame, used to create it again on the receiving
+     * side.
+     *
+     * @return
+     */
+    public byte getType() {
+        return TYPE_DATA;
+    }
+
+    /**
+     * Gets the number of the frame in its stream. Missing numbers are frames
+     * dropped by the sender.
+     *
+     * @return
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public void setSequence(int sequence) {
+        mSequence = sequence;
+    }
+
+    /**
+     * Gets the time the frame was sent, in milliseconds.
+     *
+     * @return
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        mTimestamp = timestamp;
     }
 }
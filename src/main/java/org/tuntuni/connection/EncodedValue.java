@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+/**
+ * A response value that has already been encoded by {@link RpcCodec}.
+ * <p>
+ * A server may return it from {@code getResponse} to reuse the same encoded
+ * bytes for many requests. The bytes are written as they are.</p>
+ */
+final class EncodedValue {
+
+    private final byte[] mData;
+
+    private EncodedValue(byte[] data) {
+        mData = data;
+    }
+
+    /**
+     * Encodes a value once to be sent many times.
+     *
+     * @param value value to encode
+     * @return
+     * @throws IllegalArgumentException if the value can not be encoded.
+     */
+    static EncodedValue of(Object value) {
+        return new EncodedValue(RpcCodec.encode(value));
+    }
+
+    byte[] getData() {
+        return mData;
+    }
+
+    int size() {
+        return mData.length;
+    }
+}
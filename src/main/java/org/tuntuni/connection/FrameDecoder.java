@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import org.tuntuni.models.ConnectFor;
+
+/**
+ * Collects bytes read from a non-blocking channel and splits them into
+ * {@link RpcFrame}s.
+ */
+class FrameDecoder {
+
+    static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private ByteBuffer mBuffer;
+
+    FrameDecoder() {
+        mBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads available bytes from the channel.
+     *
+     * @param channel channel to read from
+     * @return number of bytes read
+     * @throws IOException if the channel was closed by the other end.
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        if (!mBuffer.hasRemaining()) {
+            grow(mBuffer.capacity() * 2);
+        }
+        int read = channel.read(mBuffer);
+        if (read < 0) {
+            throw new EOFException("Connection closed by peer");
+        }
+        return read;
+    }
+
+    /**
+     * Gets the next complete frame.
+     *
+     * @return {@code null} if no complete frame is available yet.
+     * @throws IOException if the data is not a valid frame.
+     */
+    RpcFrame next() throws IOException {
+        if (mBuffer.position() < 4) {
+            return null;
+        }
+        int length = mBuffer.getInt(0);
+        if (length < RpcFrame.HEADER_SIZE || length > RpcFrame.MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        if (mBuffer.position() < 4 + length) {
+            if (mBuffer.capacity() < 4 + length) {
+                grow(4 + length);
+            }
+            return null;
+        }
+        mBuffer.flip();
+        mBuffer.getInt();
+        int id = mBuffer.getInt();
+        ConnectFor type = ConnectFor.from(mBuffer.get());
+        int timeout = mBuffer.getInt();
+        byte[] payload = new byte[length - RpcFrame.HEADER_SIZE];
+        mBuffer.get(payload);
+        mBuffer.compact();
+        return new RpcFrame(id, type, timeout, payload);
+    }
+
+    private void grow(int size) {
+        size = Math.min(size, 4 + RpcFrame.MAX_FRAME_SIZE);
+        if (size <= mBuffer.capacity()) {
+            return;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(size);
+        mBuffer.flip();
+        bigger.put(mBuffer);
+        mBuffer = bigger;
+    }
+}
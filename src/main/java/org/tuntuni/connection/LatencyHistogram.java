@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds.
+ * <p>
+ * Values are counted in logarithmic buckets: every power of two is split into
+ * {@value #SUB_BUCKETS} buckets, so a reported percentile is never more than
+ * 12.5% above the real value, while the whole range of a long takes less than
+ * 500 counters.</p>
+ */
+class LatencyHistogram {
+
+    static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts;
+
+    LatencyHistogram() {
+        mCounts = new AtomicLongArray(BUCKETS);
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param nanos latency in nanoseconds
+     */
+    void record(long nanos) {
+        mCounts.incrementAndGet(indexOf(Math.max(0, nanos)));
+    }
+
+    /**
+     * Gets the value below which the given fraction of the values fall.
+     *
+     * @param fraction a number between 0 and 1
+     * @return the upper bound of the bucket containing the percentile; or 0 if
+     * there are no values.
+     */
+    long percentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long upper = ((SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -21,6 +21,8 @@ import org.tuntuni.Core;
 import org.tuntuni.models.ConnectFor;
 import org.tuntuni.models.Logs;
 import org.tuntuni.models.Message;
+import org.tuntuni.models.UserData;
+import org.tuntuni.models.UserProfile;
 
 /**
  * Extended by MainServer. It provides functions to deal with a request arrived
@@ -28,8 +30,31 @@ import org.tuntuni.models.Message;
  */
 public class MainServer extends TCPServer {
 
+    // rate limits of requests per peer as {rate, burst}
+    private static final int[] MESSAGE_LIMIT = {10, 30};
+    private static final int[] PROFILE_LIMIT = {2, 10};
+    private static final int[] CALL_LIMIT = {1, 5};
+    private static final int[] DEFAULT_LIMIT = {20, 50};
+
+    // encoded profile of the user and the state it was built for
+    private volatile CachedProfile mProfile;
+    private final ProfilePublisher mPublisher;
+
     public MainServer() {
         super("Main Server", null);
+        mPublisher = new ProfilePublisher();
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        mPublisher.watch(Core.instance().user());
+    }
+
+    @Override
+    public void stop() {
+        mPublisher.stop();
+        super.stop();
     }
 
     /**
@@ -48,8 +73,12 @@ public class MainServer extends TCPServer {
         switch (status) {
             case STATE:
                 return Core.instance().user().getState();
-            case PROFILE: // send user data
-                return Core.instance().user().getData();
+            case PROFILE: // send user data if it has changed
+                if (data.length > 1 && data[1] instanceof Long
+                        && (Long) data[1] == Core.instance().user().getState()) {
+                    return RpcStatus.NOT_MODIFIED;
+                }
+                return getProfile();
             case MESSAGE: // a setMessage arrived
                 return setMessage(getClient(from), data);
             case CALL_REQUEST:
@@ -58,10 +87,114 @@ public class MainServer extends TCPServer {
                 return setCallResponse(from, data);
             case END_CALL:
                 Core.instance().dialer().endCall(getClient(from));
+                break;
+            case SUBSCRIBE:
+                return subscribe(getClient(from));
+            case PROFILE_UPDATE:
+                return updateProfile(getClient(from), data);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the encoded profile of the user. It is built again only after the
+     * state of the user profile has changed.
+     *
+     * @return
+     */
+    Object getProfile() {
+        CachedProfile profile = currentProfile();
+        if (profile == null) {
+            return new Exception("Profile not available");
+        }
+        return profile.mValue;
+    }
+
+    /**
+     * Gets the content hash of the profile of the given version. The profile
+     * is built if it has not been yet, so that the hash can be announced
+     * before anyone has downloaded the profile.
+     *
+     * @param version version of the profile
+     * @return 0 if the profile has changed from the version given
+     */
+    public int getProfileHash(long version) {
+        CachedProfile profile = currentProfile();
+        return profile != null && profile.mState == version ? profile.mHash : 0;
+    }
+
+    // builds the profile, if the state has changed since the last time
+    private CachedProfile currentProfile() {
+        UserProfile user = Core.instance().user();
+        // read the state first, so that a change made while building the data
+        // is never cached under the newer state
+        long state = user.getState();
+        CachedProfile profile = mProfile;
+        if (profile != null && profile.mState == state) {
+            return profile;
+        }
+        try {
+            UserData data = user.getData();
+            profile = new CachedProfile(state, EncodedValue.of(data), data.contentHash());
+        } catch (IllegalArgumentException ex) {
+            Logs.error(getName(), "Failed to encode profile. {0}", ex);
+            return null;
+        }
+        mProfile = profile;
+        return profile;
+    }
+
+    private static final class CachedProfile {
+
+        private final long mState;
+        private final EncodedValue mValue;
+        private final int mHash;
+
+        CachedProfile(long state, EncodedValue value, int hash) {
+            mState = state;
+            mValue = value;
+            mHash = hash;
+        }
+    }
+
+    // send the profile changes to the client
+    private Object subscribe(Client client) {
+        if (client == null) {
+            return new Exception("User not recognized");
         }
+        mPublisher.subscribe(client);
         return null;
     }
 
+    // apply the profile changes sent by a client
+    private Object updateProfile(Client client, Object[] data) {
+        if (client == null || data.length < 2 || !(data[0] instanceof UserData)
+                || !(data[1] instanceof Long)) {
+            return new Exception("Invalid profile update");
+        }
+        if (!client.updateProfile((UserData) data[0], (Long) data[1])) {
+            return new Exception("Profile not downloaded");
+        }
+        return null;
+    }
+
+    @Override
+    int[] getRateLimit(ConnectFor type) {
+        switch (type) {
+            case MESSAGE:
+                return MESSAGE_LIMIT;
+            case PROFILE:
+            case SUBSCRIBE:
+                return PROFILE_LIMIT;
+            case CALL_REQUEST:
+            case CALL_RESPONSE:
+            case END_CALL:
+                return CALL_LIMIT;
+            default:
+                return DEFAULT_LIMIT;
+        }
+    }
+
     public Client getClient(Socket socket) {
         return Core.instance().scanner().getClient(socket.getInetAddress());
     }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.IntFunction;
+import org.tuntuni.util.BufferPool;
+
+/**
+ * Binary framing of the media frames sent on a stream.
+ * <p>
+ * Each frame is written as
+ * {@code [length:int][type:byte][sequence:int][timestamp:long][payload]},
+ * where the length counts every byte after itself. Nothing is remembered
+ * between frames, so a stream of any duration uses the same memory, unlike an
+ * object stream which keeps a handle to everything written.</p>
+ */
+final class MediaCodec {
+
+    // type, sequence and timestamp
+    static final int HEADER_SIZE = 1 + 4 + 8;
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private MediaCodec() {
+    }
+
+    /**
+     * Writes a frame. The stream is not flushed.
+     *
+     * @param out the stream
+     * @param frame the frame
+     * @throws IOException
+     */
+    static void write(DataOutputStream out, DataFrame frame) throws IOException {
+        int length = frame.getLength();
+        out.writeInt(HEADER_SIZE + length);
+        out.writeByte(frame.getType());
+        out.writeInt(frame.getSequence());
+        out.writeLong(frame.getTimestamp());
+        if (length > 0) {
+            out.write(frame.getBuffer(), 0, length);
+        }
+    }
+
+    /**
+     * Reads a frame.
+     *
+     * @param in the stream
+     * @param factory creates an empty frame of a type, or returns
+     * {@code null} if the type is not known
+     * @return {@code null} if the type was not known; the frame is skipped.
+     * Otherwise the data is leased from the shared {@link BufferPool}.
+     * @throws IOException if the stream ended or the length is not valid.
+     */
+    static DataFrame read(DataInputStream in, IntFunction<DataFrame> factory)
+            throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte type = in.readByte();
+        int sequence = in.readInt();
+        long timestamp = in.readLong();
+        DataFrame frame = factory.apply(type);
+        if (frame == null) {
+            for (int left = length - HEADER_SIZE; left > 0; --left) {
+                in.readByte();
+            }
+            return null;
+        }
+        frame.lease(BufferPool.instance(), length - HEADER_SIZE);
+        try {
+            in.readFully(frame.getBuffer(), 0, frame.getLength());
+        } catch (IOException ex) {
+            frame.release();
+            throw ex;
+        }
+        frame.setSequence(sequence);
+        frame.setTimestamp(timestamp);
+        return frame;
+    }
+}
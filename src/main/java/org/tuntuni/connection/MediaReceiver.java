@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.function.IntFunction;
+
+/**
+ * Receives the frames of a {@link StreamServer} over some transport.
+ */
+interface MediaReceiver {
+
+    /**
+     * Starts to listen on a port.
+     *
+     * @param port the port, or 0 for any free port
+     * @throws IOException if the port could not be bound.
+     */
+    void open(int port) throws IOException;
+
+    /**
+     * Waits for the next frame, from the first sender only.
+     *
+     * @param factory creates an empty frame of a type, or returns
+     * {@code null} if the type is not known
+     * @return {@code null} if the type was not known.
+     * @throws IOException
+     */
+    DataFrame receive(IntFunction<DataFrame> factory) throws IOException;
+
+    boolean isOpen();
+
+    boolean isConnected();
+
+    /**
+     * Gets the local port.
+     *
+     * @return -1 if not open.
+     */
+    int getPort();
+
+    SocketAddress getRemoteAddress();
+
+    void close() throws IOException;
+}
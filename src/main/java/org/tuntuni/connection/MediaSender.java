@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Sends the frames of a {@link StreamClient} over some transport.
+ */
+interface MediaSender {
+
+    /**
+     * Opens the way to the receiver.
+     *
+     * @param address address of the receiver
+     * @throws IOException if it could not be reached.
+     */
+    void connect(InetSocketAddress address) throws IOException;
+
+    /**
+     * Sends a frame.
+     *
+     * @param frame the frame
+     * @throws IOException
+     */
+    void send(DataFrame frame) throws IOException;
+
+    boolean isConnected();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+/**
+ * Loss and jitter of the frames received by a {@link StreamServer}.
+ * <p>
+ * A frame is lost when its sequence number never arrives, whether the sender
+ * dropped it or the network did. A frame arriving after a newer one is late
+ * and is not played. The jitter is the smoothed variation of the transit
+ * time, the same way RTP measures it.</p>
+ */
+public class MediaStats {
+
+    private boolean mStarted;
+    private int mHighest;
+    private long mReceived;
+    private long mLost;
+    private long mLate;
+    private long mLastTransit;
+    private double mJitter;
+
+    /**
+     * Records a frame that has arrived.
+     *
+     * @param frame the frame
+     * @param arrival time it arrived, in milliseconds
+     * @return {@code false} if the frame is late and should be dropped.
+     */
+    public synchronized boolean record(DataFrame frame, long arrival) {
+        int sequence = frame.getSequence();
+        long transit = arrival - frame.getTimestamp();
+        if (!mStarted) {
+            mStarted = true;
+        } else if (sequence - mHighest <= 0) {
+            mLate++;
+            return false;
+        } else {
+            mLost += sequence - mHighest - 1;
+            mJitter += (Math.abs(transit - mLastTransit) - mJitter) / 16;
+        }
+        mHighest = sequence;
+        mLastTransit = transit;
+        mReceived++;
+        return true;
+    }
+
+    public synchronized long getReceived() {
+        return mReceived;
+    }
+
+    public synchronized long getLost() {
+        return mLost;
+    }
+
+    public synchronized long getLate() {
+        return mLate;
+    }
+
+    /**
+     * Gets the jitter in milliseconds.
+     *
+     * @return
+     */
+    public synchronized double getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * Gets the part of the frames lost, from 0 to 1.
+     *
+     * @return
+     */
+    public synchronized double getLossRatio() {
+        long total = mReceived + mLost;
+        return total == 0 ? 0 : (double) mLost / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("received=%d lost=%d late=%d jitter=%.1f ms",
+                mReceived, mLost, mLate, mJitter);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.Locale;
+import org.tuntuni.models.Logs;
+
+/**
+ * The transports a media stream can use.
+ * <p>
+ * {@link #TCP} delivers every frame in order, but a lost segment holds back
+ * all the frames after it. {@link #NIO} sends the same bytes as TCP through
+ * socket channels and direct buffers, with less copying. {@link #UDP} never
+ * waits: a frame missing a fragment or arriving after a newer one is dropped
+ * instead. The default is
+ * set by the system property {@value #PROPERTY}, and both ends of a call must
+ * use the same.</p>
+ */
+public enum MediaTransport {
+
+    TCP {
+        @Override
+        MediaSender newSender() {
+            return new TcpMediaSender();
+        }
+
+        @Override
+        MediaReceiver newReceiver() {
+            return new TcpMediaReceiver();
+        }
+    },
+    NIO {
+        @Override
+        MediaSender newSender() {
+            return new NioMediaSender();
+        }
+
+        @Override
+        MediaReceiver newReceiver() {
+            return new NioMediaReceiver();
+        }
+    },
+    UDP {
+        @Override
+        MediaSender newSender() {
+            return new UdpMediaSender();
+        }
+
+        @Override
+        MediaReceiver newReceiver() {
+            return new UdpMediaReceiver();
+        }
+    };
+
+    public static final String PROPERTY = "tuntuni.media.transport";
+
+    abstract MediaSender newSender();
+
+    abstract MediaReceiver newReceiver();
+
+    /**
+     * Gets the transport set by the system property. The name is not case
+     * sensitive in any locale, and a name not known is logged.
+     *
+     * @return {@link #TCP} if not set or not valid.
+     */
+    public static MediaTransport fromProperties() {
+        String value = System.getProperty(PROPERTY, TCP.name());
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            Logs.warning(MediaTransport.class, "Unknown media transport {0}. Using {1}",
+                    value, TCP);
+            return TCP;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+
+/**
+ * The multicast group used for discovery instead of broadcast.
+ * <p>
+ * It is off unless the system property {@value #ENABLED_PROPERTY} is
+ * {@code true}. The group is {@value #DEFAULT_GROUP} on the first port of
+ * {@link SubnetServer#PORTS}, and the packets live for {@value #DEFAULT_TTL}
+ * hop, so they stay in the local network. Both can be changed with the
+ * properties {@value #GROUP_PROPERTY} and {@value #TTL_PROPERTY}.</p>
+ * <p>
+ * Only the hosts that have joined the group receive the announces, and
+ * switches that snoop IGMP send them only to those ports. The receiving
+ * socket shares its port, so more than one instance can run on a host. All
+ * users of a network should use the same mode, since a user in broadcast mode
+ * does not join the group.</p>
+ */
+final class MulticastGroup {
+
+    public static final String ENABLED_PROPERTY = "tuntuni.multicast";
+    public static final String GROUP_PROPERTY = "tuntuni.multicast.group";
+    public static final String TTL_PROPERTY = "tuntuni.multicast.ttl";
+    // an organization-local address, in the administratively scoped block
+    public static final String DEFAULT_GROUP = "239.255.249.14";
+    public static final int DEFAULT_TTL = 1;
+
+    private final InetAddress mGroup;
+    private final int mPort;
+    private final int mTtl;
+
+    MulticastGroup(InetAddress group, int port, int ttl) {
+        if (!group.isMulticastAddress()) {
+            throw new IllegalArgumentException(group + " is not a multicast address");
+        }
+        mGroup = group;
+        mPort = port;
+        mTtl = ttl;
+    }
+
+    /**
+     * Gets the group set by the system properties.
+     *
+     * @return {@code null} if multicast is not enabled or the group is not
+     * valid.
+     */
+    static MulticastGroup fromProperties() {
+        if (!Boolean.getBoolean(ENABLED_PROPERTY)) {
+            return null;
+        }
+        try {
+            InetAddress group = InetAddress.getByName(
+                    System.getProperty(GROUP_PROPERTY, DEFAULT_GROUP));
+            return new MulticastGroup(group, SubnetServer.PORTS[0],
+                    Integer.getInteger(TTL_PROPERTY, DEFAULT_TTL));
+        } catch (UnknownHostException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    InetAddress getGroup() {
+        return mGroup;
+    }
+
+    int getPort() {
+        return mPort;
+    }
+
+    int getTtl() {
+        return mTtl;
+    }
+
+    /**
+     * Opens a channel to receive the packets sent to the group. Broadcast
+     * packets sent to the port are received too. No interface is joined yet.
+     *
+     * @return
+     * @throws IOException if the port could not be bound.
+     */
+    DatagramChannel openReceiver() throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            channel.bind(new InetSocketAddress(mPort));
+            return channel;
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Joins the group on an interface.
+     *
+     * @param channel channel opened by {@link #openReceiver()}
+     * @param ni the interface
+     * @return the membership; drop it to leave the group.
+     * @throws IOException if the interface can not join.
+     */
+    MembershipKey join(DatagramChannel channel, NetworkInterface ni) throws IOException {
+        return channel.join(mGroup, ni);
+    }
+
+    /**
+     * Opens a socket to send to the group. The packets are also delivered to
+     * the other instances on this host.
+     *
+     * @return
+     * @throws IOException
+     */
+    MulticastSocket openSender() throws IOException {
+        MulticastSocket socket = new MulticastSocket();
+        socket.setBroadcast(true);
+        socket.setTimeToLive(mTtl);
+        // false enables the loopback
+        socket.setLoopbackMode(false);
+        return socket;
+    }
+
+    @Override
+    public String toString() {
+        return mGroup.getHostAddress() + ":" + mPort + " ttl=" + mTtl;
+    }
+}
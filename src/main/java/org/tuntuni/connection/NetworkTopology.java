@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The IPv4 networks this PC is connected to.
+ * <p>
+ * Querying the network interfaces is slow, so it is done only when
+ * {@link #refresh()} is called. Everyone else reads the last
+ * {@link Snapshot}, which never changes once made. When a refresh finds a
+ * difference, the listeners get both the old and the new snapshot.</p>
+ * <p>
+ * Loopback interfaces and interfaces that are down are left out.</p>
+ */
+class NetworkTopology {
+
+    /**
+     * Receives the changes of the networks.
+     */
+    interface Listener {
+
+        /**
+         * Called after a refresh has found a difference.
+         *
+         * @param old the networks before
+         * @param now the networks after
+         */
+        void topologyChanged(Snapshot old, Snapshot now);
+    }
+
+    private final CopyOnWriteArrayList<Listener> mListeners;
+    private volatile Snapshot mSnapshot;
+
+    NetworkTopology() {
+        mListeners = new CopyOnWriteArrayList<>();
+        mSnapshot = new Snapshot(Collections.emptyList());
+    }
+
+    void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Gets the networks found by the last refresh.
+     *
+     * @return
+     */
+    Snapshot snapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Queries the network interfaces of the system again.
+     *
+     * @return {@code true} if the networks have changed.
+     * @throws SocketException if the interfaces could not be listed.
+     */
+    boolean refresh() throws SocketException {
+        ArrayList<Network> networks = new ArrayList<>();
+        Enumeration<NetworkInterface> ne = NetworkInterface.getNetworkInterfaces();
+        while (ne != null && ne.hasMoreElements()) {
+            NetworkInterface ni = ne.nextElement();
+            try {
+                if (ni.isLoopback() || !ni.isUp()) {
+                    continue;
+                }
+            } catch (SocketException ex) {
+                // it is gone meanwhile
+                continue;
+            }
+            for (InterfaceAddress ia : ni.getInterfaceAddresses()) {
+                if (ia.getAddress() instanceof Inet4Address) {
+                    networks.add(new Network(ni, (Inet4Address) ia.getAddress(),
+                            ia.getBroadcast(), ia.getNetworkPrefixLength()));
+                }
+            }
+        }
+        return update(networks);
+    }
+
+    /**
+     * Replaces the snapshot if the networks differ from it.
+     *
+     * @param networks the networks found
+     * @return {@code true} if the networks have changed.
+     */
+    boolean update(List<Network> networks) {
+        Snapshot old = mSnapshot;
+        if (old.mNetworks.equals(new LinkedHashSet<>(networks))) {
+            return false;
+        }
+        Snapshot now = new Snapshot(networks);
+        mSnapshot = now;
+        for (Listener listener : mListeners) {
+            listener.topologyChanged(old, now);
+        }
+        return true;
+    }
+
+    /**
+     * An IPv4 address of an interface.
+     */
+    static final class Network {
+
+        private final String mInterface;
+        private final NetworkInterface mNetworkInterface;
+        private final Inet4Address mAddress;
+        private final InetAddress mBroadcast;
+        private final short mPrefix;
+
+        Network(NetworkInterface ni, Inet4Address address, InetAddress broadcast, short prefix) {
+            this(ni.getName(), ni, address, broadcast, prefix);
+        }
+
+        Network(String name, NetworkInterface ni, Inet4Address address,
+                InetAddress broadcast, short prefix) {
+            mInterface = name;
+            mNetworkInterface = ni;
+            mAddress = address;
+            mBroadcast = broadcast;
+            mPrefix = prefix;
+        }
+
+        String getInterfaceName() {
+            return mInterface;
+        }
+
+        /**
+         * Gets the interface of the network.
+         *
+         * @return {@code null} if not known.
+         */
+        NetworkInterface getInterface() {
+            return mNetworkInterface;
+        }
+
+        Inet4Address getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * Gets the broadcast address of the network.
+         *
+         * @return {@code null} if the network has none.
+         */
+        InetAddress getBroadcast() {
+            return mBroadcast;
+        }
+
+        short getPrefix() {
+            return mPrefix;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Network)) {
+                return false;
+            }
+            Network n = (Network) other;
+            return mInterface.equals(n.mInterface) && mAddress.equals(n.mAddress)
+                    && Objects.equals(mBroadcast, n.mBroadcast) && mPrefix == n.mPrefix;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mInterface, mAddress, mBroadcast, mPrefix);
+        }
+
+        @Override
+        public String toString() {
+            return mInterface + ":" + mAddress.getHostAddress() + "/" + mPrefix;
+        }
+    }
+
+    /**
+     * The networks at some moment. It is never changed.
+     */
+    static final class Snapshot {
+
+        private final Set<Network> mNetworks;
+        private final Set<String> mAddresses;
+        private final Set<InetAddress> mLocal;
+        private final Set<InetAddress> mBroadcasts;
+
+        Snapshot(List<Network> networks) {
+            LinkedHashSet<Network> all = new LinkedHashSet<>(networks);
+            HashSet<String> addresses = new HashSet<>();
+            HashSet<InetAddress> local = new HashSet<>();
+            LinkedHashSet<InetAddress> broadcasts = new LinkedHashSet<>();
+            for (Network network : all) {
+                addresses.add(network.getAddress().getHostAddress());
+                local.add(network.getAddress());
+                if (network.getBroadcast() != null) {
+                    broadcasts.add(network.getBroadcast());
+                }
+            }
+            mNetworks = Collections.unmodifiableSet(all);
+            mAddresses = Collections.unmodifiableSet(addresses);
+            mLocal = Collections.unmodifiableSet(local);
+            mBroadcasts = Collections.unmodifiableSet(broadcasts);
+        }
+
+        Set<Network> getNetworks() {
+            return mNetworks;
+        }
+
+        /**
+         * Gets the addresses of this PC as strings.
+         *
+         * @return
+         */
+        Set<String> getAddresses() {
+            return mAddresses;
+        }
+
+        Set<InetAddress> getBroadcasts() {
+            return mBroadcasts;
+        }
+
+        boolean isLocal(InetAddress address) {
+            return mLocal.contains(address);
+        }
+
+        /**
+         * Gets the broadcast addresses that are not in another snapshot.
+         *
+         * @param other the snapshot to compare with
+         * @return
+         */
+        Set<InetAddress> newBroadcasts(Snapshot other) {
+            LinkedHashSet<InetAddress> result = new LinkedHashSet<>(mBroadcasts);
+            result.removeAll(other.mBroadcasts);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.IntFunction;
+import org.tuntuni.util.BufferPool;
+
+/**
+ * Receives the frames on a {@link SocketChannel}, framed like
+ * {@link MediaCodec}.
+ * <p>
+ * The channel is read in large chunks into one direct buffer, so a single
+ * read often brings several frames. Each payload is copied once from there
+ * into a frame leased from the shared {@link BufferPool}.</p>
+ */
+final class NioMediaReceiver implements MediaReceiver {
+
+    static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+    private ServerSocketChannel mServer;
+    private SocketChannel mChannel;
+    private SocketAddress mRemote;
+    private final ByteBuffer mInput;
+
+    NioMediaReceiver() {
+        mInput = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    }
+
+    @Override
+    public void open(int port) throws IOException {
+        mServer = ServerSocketChannel.open();
+        mServer.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        mServer.bind(new InetSocketAddress(port));
+    }
+
+    @Override
+    public DataFrame receive(IntFunction<DataFrame> factory) throws IOException {
+        if (!isConnected()) {
+            accept();
+        }
+        fill(4 + MediaCodec.HEADER_SIZE);
+        int length = mInput.getInt();
+        if (length < MediaCodec.HEADER_SIZE || length > MediaCodec.MAX_FRAME_SIZE) {
+            // out of step with the frames; wait for a new connection
+            mChannel.close();
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte type = mInput.get();
+        int sequence = mInput.getInt();
+        long timestamp = mInput.getLong();
+        int size = length - MediaCodec.HEADER_SIZE;
+        DataFrame frame = factory.apply(type);
+        if (frame != null) {
+            frame.lease(BufferPool.instance(), size);
+            frame.setSequence(sequence);
+            frame.setTimestamp(timestamp);
+        }
+        // copy or skip the payload as it arrives
+        int done = 0;
+        try {
+            while (done < size) {
+                fill(1);
+                int count = Math.min(size - done, mInput.remaining());
+                if (frame != null) {
+                    mInput.get(frame.getBuffer(), done, count);
+                } else {
+                    mInput.position(mInput.position() + count);
+                }
+                done += count;
+            }
+        } catch (IOException ex) {
+            if (frame != null) {
+                frame.release();
+            }
+            throw ex;
+        }
+        return frame;
+    }
+
+    // reads until the given number of bytes are waiting in the input
+    private void fill(int bytes) throws IOException {
+        if (mInput.remaining() >= bytes) {
+            return;
+        }
+        mInput.compact();
+        try {
+            while (mInput.position() < bytes) {
+                if (mChannel.read(mInput) < 0) {
+                    throw new EOFException();
+                }
+            }
+        } catch (IOException ex) {
+            // wait for a new connection on the next receive
+            mChannel.close();
+            throw ex;
+        } finally {
+            mInput.flip();
+        }
+    }
+
+    private void accept() throws IOException {
+        if (!isOpen()) {
+            throw new IOException("Server was not initialized");
+        }
+        SocketChannel channel = mServer.accept();
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        mChannel = channel;
+        mRemote = channel.getRemoteAddress();
+        mInput.clear();
+        mInput.flip();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mServer != null && mServer.isOpen();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isOpen() && mChannel != null && mChannel.isOpen();
+    }
+
+    @Override
+    public int getPort() {
+        return mServer == null ? -1 : mServer.socket().getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return mRemote;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mServer != null) {
+                mServer.close();
+            }
+        } finally {
+            if (mChannel != null) {
+                mChannel.close();
+                mChannel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends the frames on a {@link SocketChannel}, framed like
+ * {@link MediaCodec}.
+ * <p>
+ * The header is built in a direct buffer and written along with the payload
+ * in one gathering write, so the two are never joined in memory. Nagle's
+ * algorithm is off, since a frame should leave at once.</p>
+ */
+final class NioMediaSender implements MediaSender {
+
+    static final int SEND_BUFFER_SIZE = 256 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private SocketChannel mChannel;
+    private final ByteBuffer mHeader;
+    private final ByteBuffer[] mBuffers;
+
+    NioMediaSender() {
+        mHeader = ByteBuffer.allocateDirect(4 + MediaCodec.HEADER_SIZE);
+        mBuffers = new ByteBuffer[2];
+        mBuffers[0] = mHeader;
+    }
+
+    @Override
+    public void connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+            channel.socket().connect(address, TcpMediaSender.CONNECT_TIMEOUT);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        mChannel = channel;
+    }
+
+    @Override
+    public void send(DataFrame frame) throws IOException {
+        int length = frame.getLength();
+        mHeader.clear();
+        mHeader.putInt(MediaCodec.HEADER_SIZE + length);
+        mHeader.put(frame.getType());
+        mHeader.putInt(frame.getSequence());
+        mHeader.putLong(frame.getTimestamp());
+        mHeader.flip();
+        byte[] payload = frame.getBuffer();
+        mBuffers[1] = ByteBuffer.wrap(payload == null ? EMPTY : payload, 0, length);
+        try {
+            while (mBuffers[1].hasRemaining() || mHeader.hasRemaining()) {
+                mChannel.write(mBuffers);
+            }
+        } finally {
+            mBuffers[1] = null;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mChannel != null
+                && mChannel.isOpen()
+                && mChannel.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+        }
+    }
+}
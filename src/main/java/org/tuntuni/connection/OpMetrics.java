@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of one type of request on one side of the
+ * connection.
+ * <p>
+ * On the server, the latency is the time from receiving a request until its
+ * response is ready, and the bytes in are the requests. On the client, the
+ * latency is the time from sending a request until the response arrives, and
+ * the bytes in are the responses.</p>
+ */
+public class OpMetrics implements OpMetricsMBean {
+
+    private final LongAdder mRequests;
+    private final LongAdder mErrors;
+    private final LongAdder mBytesIn;
+    private final LongAdder mBytesOut;
+    private final LongAdder mTotalNanos;
+    private final LatencyHistogram mLatency;
+
+    OpMetrics() {
+        mRequests = new LongAdder();
+        mErrors = new LongAdder();
+        mBytesIn = new LongAdder();
+        mBytesOut = new LongAdder();
+        mTotalNanos = new LongAdder();
+        mLatency = new LatencyHistogram();
+    }
+
+    /**
+     * Records a finished request.
+     *
+     * @param nanos latency in nanoseconds
+     * @param bytesIn bytes received
+     * @param bytesOut bytes sent
+     * @param error true if the request has failed
+     */
+    void record(long nanos, int bytesIn, int bytesOut, boolean error) {
+        mRequests.increment();
+        if (error) {
+            mErrors.increment();
+        }
+        mBytesIn.add(bytesIn);
+        mBytesOut.add(bytesOut);
+        mTotalNanos.add(nanos);
+        mLatency.record(nanos);
+    }
+
+    @Override
+    public long getRequestCount() {
+        return mRequests.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return mErrors.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return mBytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return mBytesOut.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMicros() {
+        long count = mRequests.sum();
+        return count == 0 ? 0 : mTotalNanos.sum() / 1e3 / count;
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return mLatency.percentile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return mLatency.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getLatencyP999Micros() {
+        return mLatency.percentile(0.999) / 1e3;
+    }
+
+    @Override
+    public void reset() {
+        mRequests.reset();
+        mErrors.reset();
+        mBytesIn.reset();
+        mBytesOut.reset();
+        mTotalNanos.reset();
+        mLatency.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d err=%d in=%dB out=%dB mean=%.1fus"
+                + " p50=%.1fus p99=%.1fus p999=%.1fus",
+                getRequestCount(), getErrorCount(), getBytesIn(), getBytesOut(),
+                getMeanLatencyMicros(), getLatencyP50Micros(),
+                getLatencyP99Micros(), getLatencyP999Micros());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import org.tuntuni.models.Logs;
+import org.tuntuni.models.UserData;
+import org.tuntuni.util.Commons;
+import org.tuntuni.util.FileService;
+
+/**
+ * The users found in the previous runs, kept in a file.
+ * <p>
+ * They are shown at once on startup as last seen, and become connected when
+ * they announce again. Their profiles are then downloaded only if changed,
+ * since the cached version is sent along.</p>
+ * <p>
+ * Each user is written as its address, port, state, last seen time and the
+ * binary encoded profile. A user gone from the list is still remembered, but
+ * users not seen for {@value #MAX_AGE_MILLIS} milliseconds are left out. The
+ * file is replaced at once, so a crash while saving leaves the old one
+ * intact.</p>
+ */
+class PeerCache {
+
+    public static final String FILE_NAME = "peers.cache";
+    public static final long MAX_AGE_MILLIS = 7 * 24 * 3600_000L;
+
+    // "TNPC"
+    private static final int MAGIC = 0x544E5043;
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    // the users read or saved, by address
+    private final HashMap<Integer, Client> mKnown;
+
+    PeerCache() {
+        this(FileService.instance().resolve(FILE_NAME));
+    }
+
+    PeerCache(File file) {
+        mFile = file;
+        mKnown = new HashMap<>();
+    }
+
+    /**
+     * Reads the users saved.
+     *
+     * @param now current time in milliseconds
+     * @return the users, not connected. empty if there is no valid file.
+     */
+    synchronized List<Client> load(long now) {
+        ArrayList<Client> clients = new ArrayList<>();
+        if (!mFile.exists()) {
+            return clients;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return clients;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                int address = in.readInt();
+                int port = in.readInt();
+                int state = in.readInt();
+                long lastSeen = in.readLong();
+                byte[] profile = new byte[in.readInt()];
+                in.readFully(profile);
+                if (now - lastSeen > MAX_AGE_MILLIS) {
+                    continue;
+                }
+                Client client = new Client(new InetSocketAddress(
+                        InetAddress.getByAddress(Commons.intToBytes(address)), port));
+                client.restore((UserData) RpcCodec.decode(profile), state, lastSeen);
+                clients.add(client);
+                mKnown.put(address, client);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logs.error(getClass(), "Failed to read {0}. {1}", mFile, ex);
+            clients.clear();
+            mKnown.clear();
+        }
+        return clients;
+    }
+
+    /**
+     * Writes the users that have a profile, along with the ones remembered.
+     *
+     * @param clients the current users
+     */
+    synchronized void save(Collection<Client> clients) {
+        long now = System.currentTimeMillis();
+        for (Client client : clients) {
+            if (client.getUserData() != null) {
+                mKnown.put(client.getIntegerAddress(), client);
+            }
+        }
+        mKnown.values().removeIf((client) -> now - client.getLastSeen() > MAX_AGE_MILLIS);
+        ArrayList<Client> valid = new ArrayList<>(mKnown.values());
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeInt(valid.size());
+                for (Client client : valid) {
+                    byte[] profile = RpcCodec.encode(client.getUserData());
+                    out.writeInt(client.getIntegerAddress());
+                    out.writeInt(client.getPort());
+                    out.writeInt(client.getState());
+                    out.writeLong(client.getLastSeen());
+                    out.writeInt(profile.length);
+                    out.write(profile);
+                }
+            }
+            Files.move(temp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            Logs.error(getClass(), "Failed to write {0}. {1}", mFile, ex);
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.tuntuni.models.ConnectFor;
+
+/**
+ * A persistent connection from a {@link TCPClient} to the server of a peer.
+ * <p>
+ * Requests are written as soon as they are sent, without waiting for the
+ * responses of earlier requests. Responses are matched to their requests by
+ * id. The channel itself is driven by the {@link ConnectionPool}.</p>
+ * <p>
+ * A request that is cancelled, or not responded within its timeout, is
+ * removed and the server is told to drop it.</p>
+ */
+class PeerConnection {
+
+    private final InetSocketAddress mAddress;
+    private final ConnectionPool mPool;
+    private final long mOpenTime;
+    private final FrameDecoder mDecoder;
+    private final LinkedList<ByteBuffer> mWriteQueue;
+    private final ConcurrentHashMap<Integer, PendingRequest> mPending;
+    private final AtomicInteger mNextId;
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    private volatile long mLastUsed;
+    private volatile boolean mClosed;
+
+    PeerConnection(ConnectionPool pool, InetSocketAddress address) {
+        mPool = pool;
+        mAddress = address;
+        mOpenTime = System.currentTimeMillis();
+        mLastUsed = mOpenTime;
+        mDecoder = new FrameDecoder();
+        mWriteQueue = new LinkedList<>();
+        mPending = new ConcurrentHashMap<>();
+        mNextId = new AtomicInteger();
+    }
+
+    InetSocketAddress getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Sends a request to the server.
+     *
+     * @param type type of the request
+     * @param timeout time in milliseconds to wait for the response; or 0 to
+     * wait forever.
+     * @param params parameters of the request
+     * @return the response to the request. cancel it to drop the request.
+     */
+    CompletableFuture<Object> send(ConnectFor type, int timeout, Object[] params) {
+        int id = mNextId.incrementAndGet();
+        RpcFrame request = RpcFrame.request(id, type, timeout, params);
+        PendingRequest future = new PendingRequest(request);
+        if (mClosed) {
+            future.fail(new IOException("Connection closed"));
+            return future;
+        }
+        ByteBuffer frame = request.encode();
+        mPending.put(id, future);
+        mLastUsed = System.currentTimeMillis();
+        enqueue(frame);
+        // in case it was closed meanwhile
+        if (mClosed) {
+            fail(new IOException("Connection closed"));
+        }
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                cancel(id);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Fails the requests whose timeout has passed.
+     *
+     * @param now current time in nanoseconds
+     */
+    void expire(long now) {
+        for (Integer id : mPending.keySet()) {
+            PendingRequest future = mPending.get(id);
+            if (future != null && future.isExpired(now)) {
+                future.fail(new TimeoutException(future.mType
+                        + " timed out after " + future.mTimeout + " ms"));
+                cancel(id);
+            }
+        }
+    }
+
+    // forget a request, and tell the server to drop it
+    private void cancel(int id) {
+        if (mPending.remove(id) == null || mClosed) {
+            return;
+        }
+        enqueue(RpcFrame.request(mNextId.incrementAndGet(),
+                ConnectFor.CANCEL, new Object[]{id}).encode());
+    }
+
+    private void enqueue(ByteBuffer frame) {
+        synchronized (mWriteQueue) {
+            mWriteQueue.add(frame);
+        }
+        mPool.flush(this);
+    }
+
+    /**
+     * Gets the number of requests waiting for a response.
+     *
+     * @return
+     */
+    int getPendingCount() {
+        return mPending.size();
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Checks if the connection has nothing to do since the given time.
+     *
+     * @param time time in milliseconds
+     * @return
+     */
+    boolean isIdleSince(long time) {
+        return mPending.isEmpty() && mLastUsed < time;
+    }
+
+    /**
+     * Checks if the connection is still not established since the given time.
+     *
+     * @param time time in milliseconds
+     * @return
+     */
+    boolean isConnectingSince(long time) {
+        return mChannel != null && mChannel.isConnectionPending() && mOpenTime < time;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Called from the selector thread of the pool
+    ////////////////////////////////////////////////////////////////////////////
+    void register(SocketChannel channel, SelectionKey key) {
+        mChannel = channel;
+        mKey = key;
+    }
+
+    SocketChannel channel() {
+        return mChannel;
+    }
+
+    SelectionKey key() {
+        return mKey;
+    }
+
+    void read() throws IOException {
+        mDecoder.read(mChannel);
+        RpcFrame response;
+        while ((response = mDecoder.next()) != null) {
+            PendingRequest future = mPending.remove(response.getId());
+            if (future == null) {
+                continue;
+            }
+            future.respond(response);
+        }
+        mLastUsed = System.currentTimeMillis();
+    }
+
+    boolean write() throws IOException {
+        synchronized (mWriteQueue) {
+            while (!mWriteQueue.isEmpty()) {
+                ByteBuffer head = mWriteQueue.peek();
+                mChannel.write(head);
+                if (head.hasRemaining()) {
+                    return false;
+                }
+                mWriteQueue.poll();
+            }
+        }
+        return true;
+    }
+
+    void close(Exception cause) {
+        mClosed = true;
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        try {
+            if (mChannel != null) {
+                mChannel.close();
+            }
+        } catch (IOException ex) {
+        }
+        fail(cause);
+    }
+
+    // fail all pending requests
+    private void fail(Exception cause) {
+        for (Integer id : mPending.keySet()) {
+            PendingRequest future = mPending.remove(id);
+            if (future != null) {
+                future.fail(cause);
+            }
+        }
+    }
+
+    // the future response of a request. only the header of the request is
+    // kept, not its payload.
+    private static class PendingRequest extends CompletableFuture<Object> {
+
+        private final ConnectFor mType;
+        private final int mTimeout;
+        private final int mSize;
+        private final long mStart;
+
+        PendingRequest(RpcFrame request) {
+            mType = request.getType();
+            mTimeout = request.getTimeout();
+            mSize = request.getSize();
+            mStart = System.nanoTime();
+        }
+
+        boolean isExpired(long now) {
+            return mTimeout > 0 && now - mStart > mTimeout * 1_000_000L;
+        }
+
+        void respond(RpcFrame response) {
+            Object result;
+            try {
+                result = response.getResult();
+            } catch (IllegalArgumentException ex) {
+                record(response.getSize(), true);
+                completeExceptionally(ex);
+                return;
+            }
+            record(response.getSize(), result instanceof Exception);
+            complete(result);
+        }
+
+        void fail(Exception cause) {
+            record(0, true);
+            completeExceptionally(cause);
+        }
+
+        private void record(int bytesIn, boolean error) {
+            RpcMetrics.client().record(mType, System.nanoTime() - mStart,
+                    bytesIn, mSize, error);
+        }
+    }
+}
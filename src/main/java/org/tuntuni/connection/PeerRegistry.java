@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.tuntuni.models.Logs;
+import org.tuntuni.util.ConcurrentIntMap;
+
+/**
+ * The users found in the subnet, keyed by their IPv4 address as an integer.
+ * <p>
+ * Lookups are safe from any thread. The changes are not reported one by one:
+ * they are collected and sent to the listeners together, at most once every
+ * {@value #PULSE_MILLIS} milliseconds. A user added and removed within the
+ * same pulse is not reported at all.</p>
+ */
+public class PeerRegistry {
+
+    public static final int PULSE_MILLIS = 100;
+
+    /**
+     * Receives the changes of the registry.
+     */
+    public interface Listener {
+
+        /**
+         * Called with the changes since the last pulse. A replaced user is in
+         * both lists.
+         *
+         * @param added the users added
+         * @param removed the users removed
+         */
+        void peersChanged(List<Client> added, List<Client> removed);
+    }
+
+    private final ConcurrentIntMap<Client> mPeers;
+    // the user of each changed key at the last pulse
+    private final LinkedHashMap<Integer, Client> mChanged;
+    private final CopyOnWriteArrayList<Listener> mListeners;
+    private final ScheduledExecutorService mPulse;
+
+    public PeerRegistry() {
+        mPeers = new ConcurrentIntMap<>();
+        mChanged = new LinkedHashMap<>();
+        mListeners = new CopyOnWriteArrayList<>();
+        mPulse = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "PeerRegistry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gets the user of an address.
+     *
+     * @param key the address as an integer
+     * @return {@code null} if not found.
+     */
+    public Client get(int key) {
+        return mPeers.get(key);
+    }
+
+    /**
+     * Adds or replaces the user of an address.
+     *
+     * @param key the address as an integer
+     * @param client the user
+     */
+    public void put(int key, Client client) {
+        synchronized (mChanged) {
+            changed(key, mPeers.put(key, client));
+        }
+    }
+
+    /**
+     * Removes the user of an address.
+     *
+     * @param key the address as an integer
+     * @return the removed user, or {@code null} if there was none.
+     */
+    public Client remove(int key) {
+        synchronized (mChanged) {
+            Client old = mPeers.remove(key);
+            if (old != null) {
+                changed(key, old);
+            }
+            return old;
+        }
+    }
+
+    public int size() {
+        return mPeers.size();
+    }
+
+    /**
+     * Gets a copy of the current users.
+     *
+     * @return
+     */
+    public List<Client> values() {
+        return mPeers.values();
+    }
+
+    /**
+     * Adds a listener. The users already reported to the other listeners are
+     * sent to it at once as added.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        synchronized (mChanged) {
+            // the users at the last pulse
+            LinkedHashSet<Client> known = new LinkedHashSet<>(mPeers.values());
+            mChanged.forEach((key, old) -> {
+                Client current = mPeers.get(key);
+                if (current != null) {
+                    known.remove(current);
+                }
+                if (old != null) {
+                    known.add(old);
+                }
+            });
+            mListeners.add(listener);
+            if (!known.isEmpty()) {
+                notify(listener, new ArrayList<>(known), Collections.emptyList());
+            }
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    // remember the user of a key before its first change in this pulse
+    private void changed(int key, Client old) {
+        if (mChanged.isEmpty()) {
+            mPulse.schedule(() -> flush(), PULSE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (!mChanged.containsKey(key)) {
+            mChanged.put(key, old);
+        }
+    }
+
+    /**
+     * Sends the changes collected to the listeners.
+     */
+    void flush() {
+        ArrayList<Client> added = new ArrayList<>();
+        ArrayList<Client> removed = new ArrayList<>();
+        synchronized (mChanged) {
+            mChanged.forEach((key, old) -> {
+                Client current = mPeers.get(key);
+                if (current == old) {
+                    return;
+                }
+                if (old != null) {
+                    removed.add(old);
+                }
+                if (current != null) {
+                    added.add(current);
+                }
+            });
+            mChanged.clear();
+            if (added.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+            for (Listener listener : mListeners) {
+                notify(listener, added, removed);
+            }
+        }
+    }
+
+    private void notify(Listener listener, List<Client> added, List<Client> removed) {
+        try {
+            listener.peersChanged(Collections.unmodifiableList(added),
+                    Collections.unmodifiableList(removed));
+        } catch (RuntimeException ex) {
+            Logs.error(getClass(), "Listener failed. {0}", ex);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ToIntFunction;
+import org.tuntuni.Core;
+import org.tuntuni.models.UserData;
+
+/**
+ * Limits the number of profiles downloaded at the same time.
+ * <p>
+ * At most {@value #MAX_RUNNING_DOWNLOADS} downloads run together; the rest
+ * wait in a queue. When a download finishes, the waiting one with the best
+ * priority is started next: the selected user first, then the users shown in
+ * the user list, then the others. The priorities are checked at that moment,
+ * so a user selected while waiting moves up at once.</p>
+ */
+class ProfileFetcher {
+
+    public static final int MAX_RUNNING_DOWNLOADS = 4;
+
+    // priorities, lower is better
+    static final int PRIORITY_SELECTED = 0;
+    static final int PRIORITY_SHOWN = 1;
+    static final int PRIORITY_OTHER = 2;
+
+    private final int mLimit;
+    private final ToIntFunction<Client> mPriority;
+    private final LinkedList<Download> mWaiting;
+    private int mRunning;
+
+    ProfileFetcher(int limit, ToIntFunction<Client> priority) {
+        mLimit = limit;
+        mPriority = priority;
+        mWaiting = new LinkedList<>();
+    }
+
+    /**
+     * Gets the instance of the fetcher.
+     *
+     * @return
+     */
+    static ProfileFetcher instance() {
+        return FetcherHolder.INSTANCE;
+    }
+
+    /**
+     * Queues a download of the profile of a user.
+     *
+     * @param client the user
+     * @param state the discovery state of the user
+     * @return the future user data. cancel it to drop the download.
+     */
+    CompletableFuture<UserData> submit(Client client, int state) {
+        Download download = new Download(client, state);
+        synchronized (this) {
+            mWaiting.add(download);
+        }
+        drain();
+        return download.mResult;
+    }
+
+    /**
+     * Downloads the profile. Called when it is the turn of the download.
+     *
+     * @param client the user
+     * @param state the discovery state of the user
+     * @return
+     */
+    CompletableFuture<UserData> fetch(Client client, int state) {
+        return client.fetchProfile(state);
+    }
+
+    /**
+     * Gets the number of downloads waiting to be started.
+     *
+     * @return
+     */
+    synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    // start the waiting downloads as long as there is room
+    private void drain() {
+        Download next;
+        while ((next = poll()) != null) {
+            start(next);
+        }
+    }
+
+    // take the waiting download with the best priority
+    private synchronized Download poll() {
+        Download best = null;
+        int bestPriority = Integer.MAX_VALUE;
+        Iterator<Download> it = mWaiting.iterator();
+        while (it.hasNext() && mRunning < mLimit) {
+            Download download = it.next();
+            if (download.mResult.isDone()) {
+                // cancelled while waiting
+                it.remove();
+                continue;
+            }
+            int priority = mPriority.applyAsInt(download.mClient);
+            if (priority < bestPriority) {
+                best = download;
+                bestPriority = priority;
+            }
+        }
+        if (best != null) {
+            mWaiting.remove(best);
+            mRunning++;
+        }
+        return best;
+    }
+
+    private void start(Download download) {
+        CompletableFuture<UserData> fetch;
+        try {
+            fetch = fetch(download.mClient, download.mState);
+        } catch (RuntimeException ex) {
+            fetch = new CompletableFuture<>();
+            fetch.completeExceptionally(ex);
+        }
+        final CompletableFuture<UserData> running = fetch;
+        download.mResult.whenComplete((res, err) -> {
+            if (download.mResult.isCancelled()) {
+                running.cancel(false);
+            }
+        });
+        running.whenComplete((res, err) -> {
+            synchronized (this) {
+                mRunning--;
+            }
+            if (err != null) {
+                download.mResult.completeExceptionally(err);
+            } else {
+                download.mResult.complete(res);
+            }
+            drain();
+        });
+    }
+
+    // the default priority of a user
+    private static int priority(Client client) {
+        if (client == Core.instance().selected()) {
+            return PRIORITY_SELECTED;
+        }
+        return client.isShown() ? PRIORITY_SHOWN : PRIORITY_OTHER;
+    }
+
+    // a download waiting or running
+    private static class Download {
+
+        private final Client mClient;
+        private final int mState;
+        private final CompletableFuture<UserData> mResult;
+
+        Download(Client client, int state) {
+            mClient = client;
+            mState = state;
+            mResult = new CompletableFuture<>();
+        }
+    }
+
+    // instance of the fetcher
+    private static class FetcherHolder {
+
+        private static final ProfileFetcher INSTANCE
+                = new ProfileFetcher(MAX_RUNNING_DOWNLOADS, ProfileFetcher::priority);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javafx.beans.property.Property;
+import org.tuntuni.models.ConnectFor;
+import org.tuntuni.models.Logs;
+import org.tuntuni.models.UserData;
+import org.tuntuni.models.UserProfile;
+
+/**
+ * Pushes the changes of the user profile to the subscribed peers.
+ * <p>
+ * Changes made within {@value #PUBLISH_DELAY_MILLIS} milliseconds are
+ * collected and sent together. Only the changed fields are sent, and the
+ * update is encoded once for all subscribers, along with the version it was
+ * made from, so that a subscriber that missed an update can tell. A
+ * subscriber that can not be reached is removed; it subscribes again on its
+ * next full download.</p>
+ */
+class ProfilePublisher {
+
+    public static final int PUBLISH_DELAY_MILLIS = 250;
+
+    private final Set<Client> mSubscribers;
+    private final Set<String> mChanged;
+    private final ScheduledExecutorService mSchedular;
+    private UserProfile mProfile;
+    // version of the profile sent in the last update
+    private volatile long mPublished;
+
+    ProfilePublisher() {
+        mSubscribers = ConcurrentHashMap.newKeySet();
+        mChanged = new HashSet<>();
+        mSchedular = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "ProfilePublisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts to listen for the changes of the profile.
+     *
+     * @param profile profile of the user
+     */
+    synchronized void watch(UserProfile profile) {
+        if (mProfile != null) {
+            return;
+        }
+        mProfile = profile;
+        mPublished = profile.getState();
+        listen(profile.userNameProperty());
+        listen(profile.statusProperty());
+        listen(profile.aboutMeProperty());
+        listen(profile.avatarProperty());
+    }
+
+    /**
+     * Adds a peer to receive the updates.
+     *
+     * @param client the peer
+     */
+    void subscribe(Client client) {
+        mSubscribers.add(client);
+    }
+
+    void unsubscribe(Client client) {
+        mSubscribers.remove(client);
+    }
+
+    int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    void stop() {
+        mSchedular.shutdownNow();
+    }
+
+    private void listen(Property<String> property) {
+        property.addListener((observable, oldValue, newValue) -> {
+            changed(property.getName());
+        });
+    }
+
+    // mark a field changed and publish it after a while
+    private void changed(String field) {
+        synchronized (mChanged) {
+            if (mChanged.add(field) && mChanged.size() == 1) {
+                mSchedular.schedule(() -> publish(),
+                        PUBLISH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // send the changed fields to all subscribers
+    private void publish() {
+        Set<String> fields;
+        synchronized (mChanged) {
+            fields = new HashSet<>(mChanged);
+            mChanged.clear();
+        }
+        if (fields.isEmpty()) {
+            return;
+        }
+        long base = mPublished;
+        if (mSubscribers.isEmpty()) {
+            mPublished = mProfile.getState();
+            return;
+        }
+        UserData changes = UserData.changes(mProfile, fields);
+        mPublished = changes.getVersion();
+        EncodedValue update;
+        try {
+            update = EncodedValue.of(changes);
+        } catch (IllegalArgumentException ex) {
+            // the subscribers download the profile on the next update
+            Logs.error(getClass(), "Failed to encode profile update. {0}", ex);
+            return;
+        }
+        Logs.info(getClass(), "Publishing {0} to {1} subscribers", fields, mSubscribers.size());
+        for (Client client : mSubscribers) {
+            client.requestAsync(ConnectFor.PROFILE_UPDATE, update, base)
+                    .whenComplete((res, err) -> {
+                        if (err != null || res instanceof Exception) {
+                            unsubscribe(client);
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.tuntuni.models.DiscoveryData;
+import org.tuntuni.models.Message;
+import org.tuntuni.models.UserData;
+
+/**
+ * Hand written binary encoding of the values passed on a control connection.
+ * <p>
+ * Each value is written as a one byte tag followed by its fields, so no
+ * class descriptors or reflection are involved. Only the types listed here
+ * can be sent; errors travel as their message only.</p>
+ */
+final class RpcCodec {
+
+    // value tags. never change the existing numbers.
+    static final byte NULL = 0;
+    static final byte INTEGER = 1;
+    static final byte LONG = 2;
+    static final byte STRING = 3;
+    static final byte BYTES = 4;
+    static final byte ERROR = 5;
+    static final byte USER_DATA = 6;
+    static final byte MESSAGE = 7;
+    static final byte DISCOVERY_DATA = 8;
+    static final byte STATUS = 9;
+
+    static final int INITIAL_BUFFER_SIZE = 256;
+
+    private ByteBuffer mBuffer;
+
+    private RpcCodec(int size) {
+        mBuffer = ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Encodes the parameters of a request.
+     *
+     * @param params parameters to encode
+     * @return
+     */
+    static byte[] encodeParams(Object[] params) {
+        RpcCodec codec = new RpcCodec(INITIAL_BUFFER_SIZE);
+        codec.ensure(1);
+        codec.mBuffer.put((byte) params.length);
+        for (Object value : params) {
+            codec.write(value);
+        }
+        return codec.toBytes();
+    }
+
+    /**
+     * Encodes a single value.
+     *
+     * @param value value to encode
+     * @return
+     */
+    static byte[] encode(Object value) {
+        RpcCodec codec = new RpcCodec(INITIAL_BUFFER_SIZE);
+        codec.write(value);
+        return codec.toBytes();
+    }
+
+    /**
+     * Decodes the parameters of a request.
+     *
+     * @param data encoded parameters
+     * @return {@code null} if the data is not valid.
+     */
+    static Object[] decodeParams(byte[] data) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            Object[] params = new Object[Byte.toUnsignedInt(buffer.get())];
+            for (int i = 0; i < params.length; ++i) {
+                params[i] = read(buffer);
+            }
+            return params;
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a single value.
+     *
+     * @param data encoded value
+     * @return
+     * @throws IllegalArgumentException if the data is not valid.
+     */
+    static Object decode(byte[] data) {
+        if (data.length == 0) {
+            return null;
+        }
+        try {
+            return read(ByteBuffer.wrap(data));
+        } catch (BufferUnderflowException ex) {
+            throw new IllegalArgumentException("Truncated value", ex);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Writers
+    ////////////////////////////////////////////////////////////////////////////
+    private void write(Object value) {
+        if (value == null) {
+            putTag(NULL);
+        } else if (value instanceof Integer) {
+            putTag(INTEGER);
+            ensure(4);
+            mBuffer.putInt((Integer) value);
+        } else if (value instanceof Long) {
+            putTag(LONG);
+            ensure(8);
+            mBuffer.putLong((Long) value);
+        } else if (value instanceof String) {
+            putTag(STRING);
+            putString((String) value);
+        } else if (value instanceof byte[]) {
+            putTag(BYTES);
+            putBytes((byte[]) value);
+        } else if (value instanceof Exception) {
+            putTag(ERROR);
+            putString(((Exception) value).getMessage());
+        } else if (value instanceof UserData) {
+            putTag(USER_DATA);
+            UserData data = (UserData) value;
+            putString(data.getUserName());
+            putString(data.getStatus());
+            putString(data.getAboutMe());
+            putBytes(data.getAvatarData());
+            ensure(8);
+            mBuffer.putLong(data.getVersion());
+        } else if (value instanceof Message) {
+            putTag(MESSAGE);
+            putString(((Message) value).getText());
+        } else if (value instanceof DiscoveryData) {
+            putTag(DISCOVERY_DATA);
+            DiscoveryData data = (DiscoveryData) value;
+            ensure(8);
+            mBuffer.putInt(data.getPort());
+            mBuffer.putInt(data.getState());
+        } else if (value instanceof EncodedValue) {
+            byte[] data = ((EncodedValue) value).getData();
+            ensure(data.length);
+            mBuffer.put(data);
+        } else if (value instanceof RpcStatus) {
+            putTag(STATUS);
+            ensure(1);
+            mBuffer.put((byte) ((RpcStatus) value).ordinal());
+        } else {
+            throw new IllegalArgumentException(
+                    "Unsupported type " + value.getClass().getName());
+        }
+    }
+
+    private void putTag(byte tag) {
+        ensure(1);
+        mBuffer.put(tag);
+    }
+
+    // strings and arrays have a length prefix, which is -1 for null
+    private void putString(String value) {
+        putBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void putBytes(byte[] value) {
+        if (value == null) {
+            ensure(4);
+            mBuffer.putInt(-1);
+            return;
+        }
+        ensure(4 + value.length);
+        mBuffer.putInt(value.length);
+        mBuffer.put(value);
+    }
+
+    private void ensure(int size) {
+        if (mBuffer.remaining() >= size) {
+            return;
+        }
+        int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + size);
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        mBuffer.flip();
+        bigger.put(mBuffer);
+        mBuffer = bigger;
+    }
+
+    private byte[] toBytes() {
+        return Arrays.copyOf(mBuffer.array(), mBuffer.position());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Readers
+    ////////////////////////////////////////////////////////////////////////////
+    private static Object read(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INTEGER:
+                return buffer.getInt();
+            case LONG:
+                return buffer.getLong();
+            case STRING:
+                return getString(buffer);
+            case BYTES:
+                return getBytes(buffer);
+            case ERROR:
+                return new Exception(getString(buffer));
+            case USER_DATA:
+                UserData user = new UserData(getString(buffer), getString(buffer),
+                        getString(buffer), getBytes(buffer));
+                user.setVersion(buffer.getLong());
+                return user;
+            case MESSAGE:
+                return new Message(getString(buffer));
+            case DISCOVERY_DATA:
+                DiscoveryData data = new DiscoveryData(buffer.getInt());
+                data.setState(buffer.getInt());
+                return data;
+            case STATUS:
+                return RpcStatus.from(buffer.get());
+            default:
+                throw new IllegalArgumentException("Unknown tag " + tag);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] data = getBytes(buffer);
+        return data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+}
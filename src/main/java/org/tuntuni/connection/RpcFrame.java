@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.nio.ByteBuffer;
+import org.tuntuni.models.ConnectFor;
+
+/**
+ * A single request or response on a control connection.
+ * <p>
+ * Every frame is written as {@code [length][id][type][timeout][payload]},
+ * where the length is a 4-byte integer counting all bytes after itself. The id
+ * of a response is the id of the request it answers, so any number of
+ * requests can be in flight on the same connection.</p>
+ * <p>
+ * The timeout of a request is the time in milliseconds the client is going to
+ * wait for its response, or 0 to wait forever. The server measures it from
+ * the moment the request was received, so the clocks of the two machines need
+ * not agree.</p>
+ */
+final class RpcFrame {
+
+    // id(4) + type(1) + timeout(4)
+    static final int HEADER_SIZE = 9;
+    static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+
+    private final int mId;
+    private final ConnectFor mType;
+    private final int mTimeout;
+    private final byte[] mPayload;
+    private final long mCreated;
+
+    RpcFrame(int id, ConnectFor type, int timeout, byte[] payload) {
+        mId = id;
+        mType = type;
+        mTimeout = timeout;
+        mPayload = payload == null ? new byte[0] : payload;
+        mCreated = System.nanoTime();
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    ConnectFor getType() {
+        return mType;
+    }
+
+    byte[] getPayload() {
+        return mPayload;
+    }
+
+    int getTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * Gets the number of bytes of the encoded frame.
+     *
+     * @return
+     */
+    int getSize() {
+        return 4 + HEADER_SIZE + mPayload.length;
+    }
+
+    /**
+     * Gets the time since the frame was built or received.
+     *
+     * @param now current time in nanoseconds
+     * @return elapsed time in nanoseconds
+     */
+    long getAge(long now) {
+        return now - mCreated;
+    }
+
+    /**
+     * Checks if the client has stopped waiting for the response.
+     *
+     * @param now current time in nanoseconds
+     * @return
+     */
+    boolean isExpired(long now) {
+        return mTimeout > 0 && now - mCreated > mTimeout * 1_000_000L;
+    }
+
+    /**
+     * Gets the frame as a buffer ready to be written to a channel.
+     *
+     * @return
+     */
+    ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(getSize());
+        buffer.putInt(HEADER_SIZE + mPayload.length);
+        buffer.putInt(mId);
+        buffer.put(mType.data());
+        buffer.putInt(mTimeout);
+        buffer.put(mPayload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Builds a request frame.
+     *
+     * @param id request id
+     * @param type type of the request
+     * @param params parameters of the request
+     * @return
+     */
+    static RpcFrame request(int id, ConnectFor type, Object[] params) {
+        return request(id, type, 0, params);
+    }
+
+    /**
+     * Builds a request frame with a timeout.
+     *
+     * @param id request id
+     * @param type type of the request
+     * @param timeout timeout in milliseconds; or 0 for none.
+     * @param params parameters of the request
+     * @return
+     */
+    static RpcFrame request(int id, ConnectFor type, int timeout, Object[] params) {
+        return new RpcFrame(id, type, timeout, RpcCodec.encodeParams(params));
+    }
+
+    /**
+     * Builds a response frame. A {@code null} result has an empty payload, and
+     * an {@link EncodedValue} is used as the payload without encoding again.
+     *
+     * @param request the request to respond to
+     * @param result the response
+     * @return
+     */
+    static RpcFrame response(RpcFrame request, Object result) {
+        byte[] payload;
+        try {
+            if (result instanceof EncodedValue) {
+                payload = ((EncodedValue) result).getData();
+            } else {
+                payload = result == null ? null : RpcCodec.encode(result);
+            }
+        } catch (IllegalArgumentException ex) {
+            payload = RpcCodec.encode(new Exception("Invalid response"));
+        }
+        return new RpcFrame(request.getId(), request.getType(), 0, payload);
+    }
+
+    /**
+     * Gets the parameters of a request frame.
+     *
+     * @return {@code null} if the payload could not be read.
+     */
+    Object[] getParams() {
+        return RpcCodec.decodeParams(mPayload);
+    }
+
+    /**
+     * Gets the result of a response frame.
+     *
+     * @return
+     * @throws IllegalArgumentException if the payload could not be read.
+     */
+    Object getResult() {
+        return RpcCodec.decode(mPayload);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.tuntuni.models.ConnectFor;
+import org.tuntuni.models.Logs;
+
+/**
+ * Metrics of the requests per {@link ConnectFor} type, for the server and the
+ * client side of all connections.
+ * <p>
+ * Each type is published as an MBean named
+ * {@code org.tuntuni:type=RpcMetrics,side=<side>,op=<type>}. If the system
+ * property {@value #DUMP_PROPERTY} is set to a number of seconds, the
+ * metrics of the types in use are also written to the log periodically.</p>
+ */
+public final class RpcMetrics {
+
+    public static final String DUMP_PROPERTY = "tuntuni.metrics.dump";
+
+    private final String mSide;
+    private final OpMetrics[] mMetrics;
+
+    private RpcMetrics(String side) {
+        mSide = side;
+        mMetrics = new OpMetrics[ConnectFor.values().length];
+        for (int i = 0; i < mMetrics.length; ++i) {
+            mMetrics[i] = new OpMetrics();
+        }
+    }
+
+    /**
+     * Gets the metrics of all servers.
+     *
+     * @return
+     */
+    public static RpcMetrics server() {
+        return MetricsHolder.SERVER;
+    }
+
+    /**
+     * Gets the metrics of all clients.
+     *
+     * @return
+     */
+    public static RpcMetrics client() {
+        return MetricsHolder.CLIENT;
+    }
+
+    /**
+     * Gets the metrics of a type of requests.
+     *
+     * @param type type of the request
+     * @return
+     */
+    public OpMetrics get(ConnectFor type) {
+        return mMetrics[type.ordinal()];
+    }
+
+    /**
+     * Records a finished request.
+     *
+     * @param type type of the request
+     * @param nanos latency in nanoseconds
+     * @param bytesIn bytes received
+     * @param bytesOut bytes sent
+     * @param error true if the request has failed
+     */
+    void record(ConnectFor type, long nanos, int bytesIn, int bytesOut, boolean error) {
+        mMetrics[type.ordinal()].record(nanos, bytesIn, bytesOut, error);
+    }
+
+    /**
+     * Gets the metrics of the types in use as text.
+     *
+     * @return
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder(mSide).append(" metrics");
+        for (ConnectFor type : ConnectFor.values()) {
+            OpMetrics metrics = get(type);
+            if (metrics.getRequestCount() > 0) {
+                sb.append("\n  ").append(type).append(": ").append(metrics);
+            }
+        }
+        return sb.toString();
+    }
+
+    // register the mbeans of all types
+    private void register(MBeanServer server) {
+        for (ConnectFor type : ConnectFor.values()) {
+            try {
+                ObjectName name = new ObjectName("org.tuntuni:type=RpcMetrics,side="
+                        + mSide + ",op=" + type);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(get(type), name);
+                }
+            } catch (JMException ex) {
+                Logs.warning(RpcMetrics.class, "Failed to register metrics. {0}", ex);
+            }
+        }
+    }
+
+    // instances of the metrics
+    private static class MetricsHolder {
+
+        private static final RpcMetrics SERVER = new RpcMetrics("Server");
+        private static final RpcMetrics CLIENT = new RpcMetrics("Client");
+
+        static {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            SERVER.register(server);
+            CLIENT.register(server);
+            startDump(Integer.getInteger(DUMP_PROPERTY, 0));
+        }
+
+        private static void startDump(int seconds) {
+            if (seconds <= 0) {
+                return;
+            }
+            ScheduledExecutorService schedular
+                    = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                        Thread thread = new Thread(runnable, "RpcMetrics");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            schedular.scheduleAtFixedRate(() -> {
+                Logs.info(RpcMetrics.class, SERVER.dump());
+                Logs.info(RpcMetrics.class, CLIENT.dump());
+            }, seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+}
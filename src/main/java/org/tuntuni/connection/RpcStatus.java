@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+/**
+ * Short replies that carry no data. They are sent as a single byte.
+ */
+enum RpcStatus {
+
+    // the ordinal is sent. never reorder.
+    //
+    // the data requested is the same version the client already has
+    NOT_MODIFIED;
+
+    static RpcStatus from(byte data) {
+        RpcStatus[] values = values();
+        if (data < 0 || data >= values.length) {
+            throw new IllegalArgumentException("Unknown status " + data);
+        }
+        return values[data];
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of a single client connection accepted by the {@link TCPServer}.
+ * <p>
+ * A connection is kept open to serve any number of requests until the client
+ * closes it or it stays idle for too long. All methods are called from the
+ * selector thread of the server, except {@linkplain isCancelled()}.</p>
+ */
+class ServerConnection {
+
+    private final SocketChannel mChannel;
+    private final SelectionKey mKey;
+    private final FrameDecoder mDecoder;
+    private final LinkedList<ByteBuffer> mWriteQueue;
+    private long mLastActive;
+    private int mPending;
+    // ids of the requests cancelled by the client
+    private final Set<Integer> mCancelled;
+
+    ServerConnection(SocketChannel channel, SelectionKey key) {
+        mChannel = channel;
+        mKey = key;
+        mDecoder = new FrameDecoder();
+        mWriteQueue = new LinkedList<>();
+        mCancelled = ConcurrentHashMap.newKeySet();
+        mLastActive = System.currentTimeMillis();
+    }
+
+    SocketChannel channel() {
+        return mChannel;
+    }
+
+    SelectionKey key() {
+        return mKey;
+    }
+
+    /**
+     * Reads available bytes from the channel.
+     *
+     * @throws IOException if the peer closed the connection.
+     */
+    void read() throws IOException {
+        mDecoder.read(mChannel);
+        mLastActive = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the next complete request received on this connection.
+     *
+     * @return {@code null} if there is none.
+     * @throws IOException if the peer sent an invalid frame.
+     */
+    RpcFrame next() throws IOException {
+        RpcFrame frame = mDecoder.next();
+        if (frame != null) {
+            mPending++;
+        }
+        return frame;
+    }
+
+    /**
+     * Gets the number of requests that are not responded yet.
+     *
+     * @return
+     */
+    int getPending() {
+        return mPending;
+    }
+
+    /**
+     * Queues the response of a request received on this connection.
+     *
+     * @param frame the response frame
+     */
+    void reply(RpcFrame frame) {
+        skip(frame);
+        mWriteQueue.add(frame.encode());
+    }
+
+    /**
+     * Finishes a request received on this connection without a response.
+     *
+     * @param frame the request or its response
+     */
+    void skip(RpcFrame frame) {
+        mPending--;
+        mCancelled.remove(frame.getId());
+        if (mPending == 0) {
+            // cancels that arrived after the response
+            mCancelled.clear();
+        }
+    }
+
+    /**
+     * Marks a request as cancelled by the client.
+     *
+     * @param id id of the request
+     */
+    void cancel(int id) {
+        if (mPending > 0) {
+            mCancelled.add(id);
+        }
+    }
+
+    /**
+     * Checks if the client has cancelled a request. Called from the worker
+     * threads.
+     *
+     * @param id id of the request
+     * @return
+     */
+    boolean isCancelled(int id) {
+        return mCancelled.contains(id);
+    }
+
+    /**
+     * Writes as much of the queued data as the channel accepts.
+     *
+     * @return true if all queued data has been written.
+     * @throws IOException
+     */
+    boolean write() throws IOException {
+        while (!mWriteQueue.isEmpty()) {
+            ByteBuffer head = mWriteQueue.peek();
+            mChannel.write(head);
+            if (head.hasRemaining()) {
+                return false;
+            }
+            mWriteQueue.poll();
+        }
+        mLastActive = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Checks if the connection has nothing to do since the given time.
+     *
+     * @param time time in milliseconds
+     * @return
+     */
+    boolean isIdleSince(long time) {
+        return mPending == 0 && mWriteQueue.isEmpty() && mLastActive < time;
+    }
+
+    void close() {
+        mKey.cancel();
+        try {
+            mChannel.close();
+        } catch (IOException ex) {
+        }
+    }
+}
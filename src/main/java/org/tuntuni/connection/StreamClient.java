@@ -16,40 +16,65 @@
 package org.tuntuni.connection;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketException;
-import java.util.LinkedList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.tuntuni.Core;
 import org.tuntuni.models.Logs;
+import org.tuntuni.util.RingBuffer;
+import org.tuntuni.util.RingBuffer.DropPolicy;
 import org.tuntuni.videocall.DialStatus;
 
 /**
  * Sends data to the server
+ * <p>
+ * The frames go over the {@link MediaTransport} given, or the one set by the
+ * system properties. Nothing is kept after a frame is sent, so the memory
+ * used does not grow with the length of the stream.</p>
+ * <p>
+ * Frames wait in a {@link RingBuffer} filled by the capturing thread. When it
+ * is full, the {@link DropPolicy} given decides which frame is lost; by
+ * default the oldest. A frame dropped is released at once.</p>
  *
  * @author dipu
  */
 public abstract class StreamClient {
 
-    private Socket mClient;
-    private ObjectOutputStream mOutput;
+    private final MediaTransport mTransport;
+    private final MediaSender mSender;
+    private final CpuMeter mCpuMeter;
     private InetSocketAddress mAddress;
-    private final LinkedList<Object> mSendQueue;
-    private int maxQueueSize;    
+    private final DropPolicy mDropPolicy;
+    private volatile RingBuffer<DataFrame> mSendQueue;
+    private int mSequence;
     private ExecutorService mExecutor;
 
     public StreamClient(int maxQueue) {
-        maxQueueSize = maxQueue;
-        mSendQueue = new LinkedList<>();
+        this(maxQueue, MediaTransport.fromProperties());
+    }
+
+    public StreamClient(int maxQueue, MediaTransport transport) {
+        this(maxQueue, transport, DropPolicy.DROP_OLDEST);
+    }
+
+    public StreamClient(int maxQueue, MediaTransport transport, DropPolicy policy) {
+        mTransport = transport;
+        mSender = transport.newSender();
+        mCpuMeter = new CpuMeter();
+        mDropPolicy = policy;
+        mSendQueue = newQueue(maxQueue);
         mExecutor = Executors.newWorkStealingPool();
     }
 
     public abstract String getName();
 
+    private RingBuffer<DataFrame> newQueue(int size) {
+        return new RingBuffer<>(Math.max(1, size), mDropPolicy, DataFrame::release);
+    }
+
     @Override
     public String toString() {
         return getName();
@@ -64,14 +89,10 @@ public abstract class StreamClient {
     public void close() {
         try {
             mExecutor.shutdownNow();
-            if (mClient != null) {
-                mClient.close();
-            }
+            mSender.close();
         } catch (Exception ex) {
             Logs.warning(getName(), "Failed to close. {0}", ex);
         } finally {
-            mClient = null;
-            mOutput = null;
             mSendQueue.clear();
         }
     }
@@ -80,13 +101,20 @@ public abstract class StreamClient {
         if (isConnected()) {
             return;
         }
-        mClient = new Socket();
-        mClient.connect(mAddress, 5000);
-        mOutput = new ObjectOutputStream(mClient.getOutputStream());
-        Logs.info(getName(), "Connected to {0}", mAddress);
+        mSender.connect(mAddress);
+        Logs.info(getName(), "Connected to {0} by {1}", mAddress, mTransport);
     }
 
     private void run() {
+        mCpuMeter.start();
+        try {
+            send();
+        } finally {
+            mCpuMeter.stop();
+        }
+    }
+
+    private void send() {
         while (!Thread.interrupted()) {
             try {
                 connect();
@@ -101,18 +129,18 @@ public abstract class StreamClient {
         // Run consecutive IO operations
         while (!Thread.interrupted()) {
             // Wait for data to become available
-            Object data = getNext();
+            DataFrame data = getNext();
             // Check validity
             if (data == null) {
                 continue;
             }
             // Output to stream
             if (!isConnected()) {
+                data.release();
                 continue;
             }
             try {
-                mOutput.writeObject(data);
-                mOutput.flush();
+                mSender.send(data);
             } catch (SocketException ex) {
                 if (Core.instance().dialer().getStatus() != DialStatus.DIALING) {
                     Logs.error(getName(), "Socket failure! {0}", ex);
@@ -120,33 +148,32 @@ public abstract class StreamClient {
                 }
             } catch (IOException ex) {
                 Logs.error(getName(), "Write failure! {0}", ex);
+            } finally {
+                data.release();
             }
         }
     }
 
-    private Object getNext() {
-        synchronized (mSendQueue) {
-            if (mSendQueue.isEmpty()) {
-                try {
-                    mSendQueue.wait(1000);
-                } catch (InterruptedException ex) {
-                    Logs.error(getName(), "Waiting interrupted. {0}", ex);
-                    return null;
-                }
-            }
-            return mSendQueue.poll();
+    private DataFrame getNext() {
+        try {
+            return mSendQueue.poll(1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Logs.error(getName(), "Waiting interrupted. {0}", ex);
+            Thread.currentThread().interrupt();
+            return null;
         }
     }
 
-    public void send(Object frame) {
-        // Add to queue 
-        synchronized (mSendQueue) {
-            mSendQueue.add(frame);
-            if (mSendQueue.size() > maxQueueSize) {
-                mSendQueue.remove();
-            }
-            mSendQueue.notify();
-        }
+    /**
+     * Queues a frame. It should always be called from the same thread. The
+     * frame is released once sent, or once dropped from the queue.
+     *
+     * @param frame the frame
+     */
+    public void send(DataFrame frame) {
+        frame.setSequence(mSequence++);
+        frame.setTimestamp(System.currentTimeMillis());
+        mSendQueue.offer(frame);
     }
 
     public void send(byte[] data, int size) {
@@ -154,10 +181,20 @@ public abstract class StreamClient {
     }
 
     public boolean isConnected() {
-        return mClient != null
-                && mOutput != null
-                && !mClient.isClosed()
-                && mClient.isConnected();
+        return mSender.isConnected();
+    }
+
+    public MediaTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Gets the CPU time used by the sending thread so far.
+     *
+     * @return nanoseconds, or -1 if not supported.
+     */
+    public long getCpuTime() {
+        return mCpuMeter.getNanos();
     }
 
     public InetSocketAddress getAddress() {
@@ -165,10 +202,30 @@ public abstract class StreamClient {
     }
 
     public int getMaxQueueSize() {
-        return maxQueueSize;
+        return mSendQueue.getCapacity();
     }
 
+    /**
+     * Changes the size of the queue. The frames waiting are dropped.
+     *
+     * @param size most frames that can wait
+     */
     public void setMaxQueueSize(int size) {
-        maxQueueSize = Math.max(1, size);
+        RingBuffer<DataFrame> old = mSendQueue;
+        mSendQueue = newQueue(size);
+        old.clear();
+    }
+
+    public DropPolicy getDropPolicy() {
+        return mDropPolicy;
+    }
+
+    /**
+     * Gets the number of frames dropped from the queue.
+     *
+     * @return
+     */
+    public long getDropped() {
+        return mSendQueue.getDropped();
     }
 }
@@ -17,12 +17,8 @@ package org.tuntuni.connection;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
-import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import org.tuntuni.Core;
@@ -31,51 +27,77 @@ import org.tuntuni.videocall.DialStatus;
 
 /**
  * Receives data from client
+ * <p>
+ * The frames come over the {@link MediaTransport} given, or the one set by
+ * the system properties. Each is created by {@link #createFrame(int)} from
+ * its type. Late frames are dropped, and the loss and jitter are kept in
+ * {@link #getStats()}.</p>
  *
  * @author dipu
  */
 public abstract class StreamServer {
 
     private final int mPort;
-    private ServerSocket mServer;
-    private Socket mClient;
-    private ObjectInputStream mInput; 
+    private final MediaTransport mTransport;
+    private final MediaReceiver mReceiver;
+    private final MediaStats mStats;
+    private final CpuMeter mCpuMeter;
     private ExecutorService mExecutor;
 
     public StreamServer(int port) {
+        this(port, MediaTransport.fromProperties());
+    }
+
+    public StreamServer(int port, MediaTransport transport) {
         mPort = port;
+        mTransport = transport;
+        mReceiver = transport.newReceiver();
+        mStats = new MediaStats();
+        mCpuMeter = new CpuMeter();
         mExecutor = Executors.newWorkStealingPool();
     }
 
     public abstract String getName();
 
     public void open() throws IOException {
-        mServer = new ServerSocket(mPort);
+        mReceiver.open(mPort);
         mExecutor.submit(() -> listen()); 
-        Logs.info(getName(), "Opened @ {0}", getPort());
+        Logs.info(getName(), "Opened @ {0} by {1}", getPort(), mTransport);
     }
 
     public void close() {
         try {
             mExecutor.shutdownNow();
-            
-            if (mServer != null) {
-                mServer.close(); 
-            }
-            if (mClient != null) {
-                mClient.close();
-                mClient = null;
-            } 
+            mReceiver.close();
+            Logs.info(getName(), "Closed. {0} cpu={1} ms", mStats,
+                    getCpuTime() / 1_000_000);
         } catch (Exception ex) {
             Logs.warning(getName(), "Failed to close. {0}", ex);
         }
     }
 
     public void listen() {
+        mCpuMeter.start();
+        try {
+            receiveAll();
+        } finally {
+            mCpuMeter.stop();
+        }
+    }
+
+    private void receiveAll() {
         while (isOpen()) {
             try {
                 
-                dataReceived(receive());
+                DataFrame frame = receive();
+                if (frame == null) {
+                    continue;
+                }
+                if (mStats.record(frame, System.currentTimeMillis())) {
+                    dataReceived(frame);
+                } else {
+                    frame.release();
+                }
                 
             } catch (EOFException ex) {
             } catch (SocketException ex) {
@@ -83,48 +105,83 @@ public abstract class StreamServer {
                     Logs.error(getName(), "Connection failure! {0}", ex);
                     break;
                 }
-            } catch (IOException | ClassNotFoundException ex) {
+            } catch (IOException ex) {
                 Logs.error(getName(), "Receive failure. {0}", ex);
             }
         }
     }
 
+    /**
+     * Called with every frame in order. The frame belongs to the receiver,
+     * which should release it when done.
+     *
+     * @param data the frame
+     */
     public abstract void dataReceived(Object data);
 
-    public Object receive() throws SocketException, IOException, ClassNotFoundException {
-        if (!isConnected()) {
-            accept();
-        }
-        return mInput.readObject();
+    /**
+     * Creates an empty frame to receive a type into.
+     *
+     * @param type the type of the frame
+     * @return {@code null} to skip frames of the type.
+     */
+    protected DataFrame createFrame(int type) {
+        return type == DataFrame.TYPE_DATA ? new DataFrame() : null;
     }
 
-    private void accept() throws IOException {
-        if (!isOpen()) {
-            throw new IOException("Server was not initialized");
+    /**
+     * Waits for the next frame.
+     *
+     * @return {@code null} if its type was skipped.
+     * @throws SocketException
+     * @throws IOException
+     */
+    public DataFrame receive() throws SocketException, IOException {
+        boolean connected = isConnected();
+        DataFrame frame = mReceiver.receive((type) -> createFrame(type));
+        if (!connected) {
+            Logs.info(getName(), "Accepted client {0}", getRemoteAddress());
         }
-        mClient = mServer.accept();
-        mInput = new ObjectInputStream(mClient.getInputStream());
-        Logs.info(getName(), "Accepted client {0}", getRemoteAddress());
+        return frame;
     }
 
     public boolean isOpen() {
-        return mServer != null
-                && !mServer.isClosed();
+        return mReceiver.isOpen();
     }
 
     public boolean isConnected() {
-        return isOpen()
-                && mInput != null
-                && mClient != null
-                && !mClient.isClosed();
+        return mReceiver.isConnected();
     }
 
     public int getPort() {
-        return mServer == null ? -1 : mServer.getLocalPort();
+        return mReceiver.getPort();
     }
 
     public SocketAddress getRemoteAddress() {
-        return mClient != null ? mClient.getRemoteSocketAddress() : null;
+        return mReceiver.getRemoteAddress();
+    }
+
+    public MediaTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Gets the loss and jitter of the frames received.
+     *
+     * @return
+     */
+    public MediaStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Gets the CPU time used by the receiving thread so far, including the
+     * time spent in {@link #dataReceived(Object)}.
+     *
+     * @return nanoseconds, or -1 if not supported.
+     */
+    public long getCpuTime() {
+        return mCpuMeter.getNanos();
     }
 
     @Override
@@ -15,160 +15,257 @@
  */
 package org.tuntuni.connection;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.InterfaceAddress;
+import java.net.MulticastSocket;
 import java.net.NetworkInterface;
-import java.util.Enumeration;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import org.tuntuni.Core;
 import org.tuntuni.models.DiscoveryData;
 import org.tuntuni.models.Logs;
-import org.tuntuni.util.Commons;
 
 /**
- * Search all subnet masks for active users and update user-list periodically.
+ * Announces this user to the subnet, and keeps announcing it as long as it is
+ * running.
+ * <p>
+ * Announces are broadcast on every network interface by an
+ * {@link AnnounceScheduler}: right away when the state changes or a new
+ * network appears, then less and less often while nothing changes. A new
+ * peer is also answered directly, so it does not have to wait for the next
+ * broadcast.</p>
+ * <p>
+ * The networks are taken from a {@link NetworkTopology}, which is refreshed
+ * every {@value #INTERFACE_CHECK_MILLIS} milliseconds, not on every
+ * announce.</p>
+ * <p>
+ * If a {@link MulticastGroup} is enabled, announces are sent to the group on
+ * each interface instead of being broadcast.</p>
  */
 public class Subnet {
 
-    public static final int SCAN_START_DELAY_MILLIS = 1_000;
-    public static final int SCAN_INTERVAL_MILLIS = 12_000;
+    public static final int INTERFACE_CHECK_MILLIS = 5_000;
+    public static final int REPLY_JITTER_MILLIS = 500;
+    public static final int REPLY_SUPPRESS_MILLIS = 10_000;
 
     private DatagramSocket mSocket;
     private final DiscoveryData mDataToSend;
     private final ScheduledExecutorService mSchedular;
-    private final HashSet<String> myAddress;
+    private final AnnounceScheduler mAnnouncer;
+    private final NetworkTopology mTopology;
+    private final MulticastGroup mMulticast;
+    // last time a peer was answered directly. used from the schedular only.
+    private final HashMap<InetAddress, Long> mReplied;
+    private final Random mRandom;
+    // datagram of the discovery data. used from the schedular only.
+    private final ByteBuffer mSendBuffer;
 
     /**
      * Creates a new instance of Subnet.
      */
     public Subnet() {
-        myAddress = new HashSet<>();
+        mTopology = new NetworkTopology();
+        mMulticast = MulticastGroup.fromProperties();
+        mTopology.addListener((old, now) -> networksChanged(old, now));
+        mReplied = new HashMap<>();
+        mRandom = new Random();
+        mSendBuffer = ByteBuffer.allocate(DiscoveryData.SIZE);
         mDataToSend = new DiscoveryData();
         mSchedular = Executors.newSingleThreadScheduledExecutor();
+        mAnnouncer = new AnnounceScheduler(performScan, mSchedular);
     }
 
     ////////////////////////////////////////////////////////////////////////////
     // MOST IMPORTANT: Start or stop subnet scans
     ////////////////////////////////////////////////////////////////////////////    
     /**
-     * Start the periodic task that scan through all possible subnets.
+     * Starts to announce this user on all subnets.
      * <p>
-     * After calling the {@linkplain start()} method, the first scan starts
-     * after around {@value #SCAN_START_DELAY_MILLIS} milliseconds and repeat
-     * once every {@value #SCAN_INTERVAL_MILLIS} milliseconds. </p>
+     * After calling the {@linkplain start()} method, the first announce is
+     * made at once. The network interfaces are checked for changes once every
+     * {@value #INTERFACE_CHECK_MILLIS} milliseconds.</p>
      */
     public void start() {
         mDataToSend.setPort(Core.instance().server().getPort());
-        // start periodic check to get active user list        
-        mSchedular.scheduleAtFixedRate(performScan, SCAN_START_DELAY_MILLIS,
-                SCAN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        // find the networks before the first announce
+        mSchedular.execute(() -> checkInterfaces());
+        mAnnouncer.trigger();
+        mSchedular.scheduleWithFixedDelay(() -> checkInterfaces(), INTERFACE_CHECK_MILLIS,
+                INTERFACE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Cancel the scheduled task.
      */
     public void stop() {
+        mAnnouncer.stop();
         mSchedular.shutdownNow();
         mDataToSend.setPort(-1);
         mDataToSend.changeState();
         new Thread(performScan).start();
     }
 
-    // to scan over whole subnet of all networks for active users
-    // if new network interfaces are added, it also includes them on the fly
-    private final Runnable performScan = () -> {
-        //Logs.info(getClass(), Logs.SUBNET_SCAN_START);
-        try {
-            // open a datagram socket at any random port
-            mSocket = new DatagramSocket();
-            mSocket.setBroadcast(true);
+    /**
+     * Sets the number of peers currently visible, to adjust the announce
+     * interval.
+     *
+     * @param count number of peers
+     */
+    public void setPeerCount(int count) {
+        mAnnouncer.setPeerCount(count);
+    }
 
-            // get all network interfaces
-            Enumeration<NetworkInterface> ne
-                    = NetworkInterface.getNetworkInterfaces();
+    /**
+     * Gets the longest time between two announces of this user. Other users
+     * of the subnet see about the same number of peers, so they should
+     * announce at least as often.
+     *
+     * @return interval in milliseconds
+     */
+    public long getMaxAnnounceInterval() {
+        return mAnnouncer.getMaxInterval();
+    }
 
-            // loop through all of them
-            while (ne.hasMoreElements()) {
-                checkNetworkInterface(ne.nextElement());
+    /**
+     * Answers a newly found peer directly, after a short random delay. A peer
+     * is answered at most once every {@value #REPLY_SUPPRESS_MILLIS}
+     * milliseconds.
+     *
+     * @param address address of the peer
+     */
+    public void reply(InetAddress address) {
+        if (mSchedular.isShutdown()) {
+            return;
+        }
+        mSchedular.schedule(() -> {
+            long now = System.currentTimeMillis();
+            Long last = mReplied.get(address);
+            if (last != null && now - last < REPLY_SUPPRESS_MILLIS) {
+                return;
             }
-            //Logs.info(getClass(), "Performed a broadcast sequence");
+            mReplied.values().removeIf((time) -> now - time >= REPLY_SUPPRESS_MILLIS);
+            mReplied.put(address, now);
+            send(address);
+        }, mRandom.nextInt(REPLY_JITTER_MILLIS), TimeUnit.MILLISECONDS);
+    }
 
-            // Close the socket!
-            mSocket.close();
+    // announce this user on all networks
+    private final Runnable performScan = () -> scan();
+
+    private void scan() {
+        try {
+            updateProfile();
+            if (mMulticast != null) {
+                sendMulticast();
+                return;
+            }
+            for (InetAddress broadcast : mTopology.snapshot().getBroadcasts()) {
+                send(broadcast);
+            }
         } catch (Exception ex) {
             Logs.error(getClass(), "Scan failed. {0}", ex);
         }
+    }
 
-    };
-
-    // check all address avaiable in a network interface
-    private void checkNetworkInterface(NetworkInterface ni) {
+    // look for changes of the networks
+    private void checkInterfaces() {
         try {
-            // loopbacks are not necessary to check
-            // only check the interface that is up or active.
-            if (ni.isLoopback() || !ni.isUp()) {
-                return;
+            mTopology.refresh();
+        } catch (Exception ex) {
+            Logs.error(getClass(), "Interface check failed. {0}", ex);
+        }
+    }
+
+    // announce at once if a network has appeared
+    private void networksChanged(NetworkTopology.Snapshot old, NetworkTopology.Snapshot now) {
+        Logs.info(getClass(), "Networks changed to {0}", now.getNetworks());
+        if (!now.newBroadcasts(old).isEmpty()) {
+            mAnnouncer.trigger();
+        }
+    }
+
+    // announce the current version of the profile, and its hash
+    private void updateProfile() {
+        Core core = Core.instance();
+        long version = core.user().getState();
+        mDataToSend.setProfileVersion(version);
+        mDataToSend.setProfileHash(core.server().getProfileHash(version));
+    }
+
+    // the socket to send from. it is kept open.
+    private DatagramSocket socket() throws IOException {
+        if (mSocket == null || mSocket.isClosed()) {
+            if (mMulticast != null) {
+                mSocket = mMulticast.openSender();
+            } else {
+                mSocket = new DatagramSocket();
+                mSocket.setBroadcast(true);
             }
-            // list of all tasks
-            //ArrayList<Callable<Integer>> taskList = new ArrayList<>();
-            // loop through addresses assigned to this interface. (usually 1)
-            ni.getInterfaceAddresses().stream().forEach((ia) -> {
-                // get network address
-                InetAddress address = ia.getAddress();
-                // Send the broadcast signal to an IPv4 address. 
-                if (address instanceof Inet4Address) {
-                        //&& address.isSiteLocalAddress()) {
-                    sendBroadcastRequest(ia);
-                }
-                /*
-                 --- Site Local Address ---
-                 These have the scope of an entire site, or organization. 
-                 They allow addressing within an organization without need for
-                 using a public prefix. 
-                 Routers will forward datagrams using site-local addresses 
-                 within the site, but not outside it to the public Internet. 
-                 */
-            });
+        }
+        return mSocket;
+    }
 
-        } catch (Exception ex) {
-            Logs.error(getClass(), "Failed to check interface. {0}", ex);
+    // send the discovery data to the group on every interface
+    private void sendMulticast() {
+        HashSet<String> done = new HashSet<>();
+        for (NetworkTopology.Network network : mTopology.snapshot().getNetworks()) {
+            NetworkInterface ni = network.getInterface();
+            if (ni == null || !done.add(network.getInterfaceName())) {
+                continue;
+            }
+            try {
+                ((MulticastSocket) socket()).setNetworkInterface(ni);
+                send(mMulticast.getGroup(), mMulticast.getPort());
+            } catch (Exception ex) {
+                Logs.error(getClass(), "Failed to send to the group on {0}. {1}",
+                        network.getInterfaceName(), ex);
+            }
         }
     }
 
-    // send broadcast request to given address domain
-    private void sendBroadcastRequest(InterfaceAddress ia) {
+    // send the discovery data to all server ports of an address
+    private void send(InetAddress address) {
         try {
-            // add to my address list
-            myAddress.add(ia.getAddress().getHostAddress());
-            // data to send
-            byte[] sendData = Commons.toBytes(mDataToSend);
-            // Send the broadcast package!  
             for (int port : SubnetServer.PORTS) {
-                DatagramPacket sendPacket = new DatagramPacket(
-                        sendData, sendData.length,
-                        ia.getBroadcast(), port);
-                mSocket.send(sendPacket);
+                send(address, port);
             }
-
         } catch (Exception ex) {
-            Logs.error(getClass(), "Failed to send broadcast. {0}", ex);
+            Logs.error(getClass(), "Failed to send to {0}. {1}", address, ex);
         }
     }
 
+    private void send(InetAddress address, int port) throws IOException {
+        mSendBuffer.clear();
+        mDataToSend.write(mSendBuffer);
+        socket().send(new DatagramPacket(
+                mSendBuffer.array(), mSendBuffer.position(), address, port));
+    }
+
+    /**
+     * Gets the networks this PC is connected to.
+     *
+     * @return
+     */
+    NetworkTopology topology() {
+        return mTopology;
+    }
+
     /**
      * Checks if the given address is one of this PC's address
      *
      * @param address Address to check
      * @return
      */
-    public boolean isLocalhost(String address) {
-        return myAddress.contains(address);
+    public boolean isLocalhost(InetAddress address) {
+        return mTopology.snapshot().isLocal(address);
     }
 
     /**
@@ -177,8 +274,8 @@ public class Subnet {
      *
      * @return
      */
-    public HashSet<String> getMyAddresses() {
-        return myAddress;
+    public Set<String> getMyAddresses() {
+        return mTopology.snapshot().getAddresses();
     }
 
     /**
@@ -186,6 +283,7 @@ public class Subnet {
      */
     public void changeState() {
         mDataToSend.changeState();
+        mAnnouncer.trigger();
     }
 
 }
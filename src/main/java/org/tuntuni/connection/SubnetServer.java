@@ -15,21 +15,50 @@
  */
 package org.tuntuni.connection;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-import javafx.beans.property.SimpleMapProperty;
-import javafx.collections.FXCollections;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.net.NetworkInterface;
+import java.nio.channels.MembershipKey;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import org.tuntuni.Core;
 import org.tuntuni.models.DiscoveryData;
 import org.tuntuni.models.Logs;
-import org.tuntuni.util.Commons;
 import org.tuntuni.util.SocketUtils;
 
 /**
+ * Listens for the discovery data broadcast by other users.
+ * <p>
+ * Packets are received into a single reused buffer and decoded in place.
+ * A packet of a known user whose profile is up to date only marks the user
+ * alive. The other users are updated on one worker thread, in the order the
+ * packets arrived; when more than {@value #MAX_QUEUED_PACKETS} packets are
+ * waiting, new ones are dropped until the worker catches up.</p>
+ * <p>
+ * A user not heard from for twice the longest announce interval plus a grace
+ * period is removed. The grace period is {@value #DEFAULT_GRACE_MILLIS}
+ * milliseconds, or the value of the system property
+ * {@value #GRACE_PROPERTY}. The deadlines are kept in a {@link TimingWheel},
+ * so there is one timer for all users.</p>
+ * <p>
+ * If a {@link MulticastGroup} is enabled, the server joins it on every
+ * network the {@link Subnet} knows of, and again when a network appears.
+ * Broadcasts sent to its port are still received.</p>
+ * <p>
+ * The users are saved to a {@link PeerCache} every
+ * {@value #CACHE_SAVE_MILLIS} milliseconds and on stop, and listed again on
+ * the next start until they announce themselves or expire.</p>
  *
  * @author Sudipto Chandra
  */
@@ -41,16 +70,69 @@ public class SubnetServer implements Runnable {
         //62915
     };
 
+    public static final int MAX_QUEUED_PACKETS = 256;
+    public static final int MAX_PACKET_SIZE = 512;
+    public static final String GRACE_PROPERTY = "tuntuni.peer.grace";
+    public static final int DEFAULT_GRACE_MILLIS = 30_000;
+    public static final int EXPIRY_TICK_MILLIS = 1_000;
+    public static final int EXPIRY_SLOTS = 512;
+    public static final int CACHE_SAVE_MILLIS = 60_000;
+
     private Thread mServerThread;
-    private DatagramSocket mSocket;
-    private final SimpleMapProperty<Integer, Client> mUserList;
+    private DatagramChannel mChannel;
+    private final ByteBuffer mBuffer;
+    // the packet last received, decoded in place
+    private final DiscoveryData mReceived;
+    private final ThreadPoolExecutor mWorker;
+    private final ScheduledExecutorService mTicker;
+    // deadlines of the users. used from the worker only.
+    private final TimingWheel<Integer> mExpiry;
+    private volatile long mGracePeriod;
+    private final MulticastGroup mMulticast;
+    // joined interfaces by name
+    private final HashMap<String, MembershipKey> mMemberships;
+    private final PeerCache mCache;
+    private final PeerRegistry mUserList;
 
     /**
      * Creates a MulticastServer by given port to listen.
      */
     public SubnetServer() {
-        mUserList = new SimpleMapProperty<>(FXCollections.observableHashMap());
+        mUserList = new PeerRegistry();
+        mBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        mReceived = new DiscoveryData();
+        // one worker only, so the packets of a user are handled in order
+        mWorker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_PACKETS), (runnable) -> {
+                    Thread thread = new Thread(runnable, "SubnetServer-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        mTicker = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "SubnetServer-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mExpiry = new TimingWheel<>(EXPIRY_TICK_MILLIS, EXPIRY_SLOTS,
+                System.currentTimeMillis());
+        mGracePeriod = Long.getLong(GRACE_PROPERTY, DEFAULT_GRACE_MILLIS);
+        mMulticast = MulticastGroup.fromProperties();
+        mMemberships = new HashMap<>();
+        mCache = new PeerCache();
+    }
+
+    /**
+     * Sets the time a user may stay silent beyond the expected announce
+     * interval before it is removed.
+     *
+     * @param millis grace period in milliseconds
+     */
+    public void setGracePeriod(long millis) {
+        mGracePeriod = millis;
+    }
 
+    public long getGracePeriod() {
+        return mGracePeriod;
     }
 
     ////////////////////////////////////////////////////////////////////////////
@@ -60,22 +142,36 @@ public class SubnetServer implements Runnable {
      * Starts the server thread.
      */
     public void start() {
-        // bind a datagram socket to the given port address 
+        if (mMulticast != null) {
+            openMulticast();
+        }
+        // bind a datagram channel to the given port address 
         for (int port : PORTS) {
+            if (mChannel != null) {
+                break;
+            }
             try {
-                mSocket = new DatagramSocket(port, InetAddress.getByName("0.0.0.0"));
-                mSocket.setBroadcast(true);
+                mChannel = DatagramChannel.open();
+                mChannel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+                mChannel.bind(new InetSocketAddress(port));
                 break;
-            } catch (UnknownHostException | SocketException ex) {
-                mSocket = null;
+            } catch (IOException ex) {
+                closeChannel();
             }
         }
-        if (mSocket == null) {
+        if (mChannel == null) {
             Logs.error(getClass(), "Failed to start.");
+            return;
         }
+        mWorker.execute(() -> restoreUsers());
         mServerThread = new Thread(this);
         mServerThread.setDaemon(true);
         mServerThread.start();
+        // expire the users on the worker, which owns the list
+        mTicker.scheduleWithFixedDelay(() -> mWorker.execute(() -> expireUsers()),
+                EXPIRY_TICK_MILLIS, EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        mTicker.scheduleWithFixedDelay(() -> mCache.save(mUserList.values()),
+                CACHE_SAVE_MILLIS, CACHE_SAVE_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -84,68 +180,131 @@ public class SubnetServer implements Runnable {
     public void stop() {
         if (mServerThread != null) {
             mServerThread.interrupt();
-            mSocket.close();
+            closeChannel();
+        }
+        mTicker.shutdownNow();
+        mWorker.shutdownNow();
+        if (mServerThread != null) {
+            mCache.save(mUserList.values());
         }
     }
 
     public int getPort() {
-        return mSocket == null ? -1 : mSocket.getLocalPort();
+        try {
+            return mChannel == null ? -1
+                    : ((InetSocketAddress) mChannel.getLocalAddress()).getPort();
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    // listen to the multicast group
+    private void openMulticast() {
+        try {
+            mChannel = mMulticast.openReceiver();
+        } catch (IOException ex) {
+            Logs.error(getClass(), "Failed to listen to {0}. {1}", mMulticast, ex);
+            return;
+        }
+        NetworkTopology topology = Core.instance().subnet().topology();
+        topology.addListener((old, now) -> joinGroup(now));
+        joinGroup(topology.snapshot());
+    }
+
+    // join the group on the interfaces not joined yet
+    private synchronized void joinGroup(NetworkTopology.Snapshot snapshot) {
+        DatagramChannel channel = mChannel;
+        if (channel == null) {
+            return;
+        }
+        mMemberships.values().removeIf((key) -> !key.isValid());
+        for (NetworkTopology.Network network : snapshot.getNetworks()) {
+            NetworkInterface ni = network.getInterface();
+            if (ni == null || mMemberships.containsKey(network.getInterfaceName())) {
+                continue;
+            }
+            try {
+                mMemberships.put(network.getInterfaceName(), mMulticast.join(channel, ni));
+                Logs.info(getClass(), "Joined {0} on {1}", mMulticast, ni.getName());
+            } catch (IOException | UnsupportedOperationException ex) {
+                Logs.error(getClass(), "Failed to join {0} on {1}. {2}",
+                        mMulticast, ni.getName(), ex);
+            }
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if (mChannel != null) {
+                mChannel.close();
+            }
+        } catch (IOException ex) {
+        }
+        mChannel = null;
     }
 
     @Override
     public void run() {
         Logs.info(getClass(), "Listening for broadcast packets at {0}", getPort());
 
-        while (!Thread.interrupted()) {
+        DatagramChannel channel = mChannel;
+        while (!Thread.interrupted() && channel.isOpen()) {
             try {
                 // receive a packet
-                byte[] data = Commons.toBytes(new DiscoveryData());
-                DatagramPacket packet = new DatagramPacket(data, data.length);
-                mSocket.receive(packet);
+                mBuffer.clear();
+                InetSocketAddress from = (InetSocketAddress) channel.receive(mBuffer);
+                mBuffer.flip();
 
-                // convert response data
-                DiscoveryData dd = Commons.fromBytes(data, DiscoveryData.class);
-                if (dd == null) {
+                // decode the data in place
+                DiscoveryData dd = mReceived;
+                if (from == null || !dd.read(mBuffer)) {
                     continue;
                 }
+                InetAddress address = from.getAddress();
 
                 // We have a response
-                Logs.info(getClass(), "Packet received. From: {0}, Data: {1},{2}",
-                        packet.getAddress().getHostAddress(), dd.getPort(), dd.getState());
+                if (Logs.instance().isLoggable(Level.FINE)) {
+                    Logs.log(Level.FINE, getClass(), "Packet received. From: {0}, Data: {1},{2}",
+                            address.getHostAddress(), dd.getPort(), dd.getState());
+                }
 
                 // check validity of the address
-                if (dd.getPort()
-                        == Core.instance().server().getPort()
-                        && Core.instance().subnet().isLocalhost(packet.getAddress().getHostAddress())) {
+                if (dd.getPort() == Core.instance().server().getPort()
+                        && Core.instance().subnet().isLocalhost(address)) {
                     continue;
                 }
 
-                // add new client
-                Thread t = new Thread(() -> {
-                    addUser(packet.getAddress(), dd);
-                });
+                // a known user with nothing new is only marked alive
+                Client client = mUserList.get(SocketUtils.addressAsInteger(address));
+                if (client != null && client.isConnected()
+                        && client.getPort() == dd.getPort() && client.isProfileCurrent(dd)) {
+                    client.setState(dd.getState());
+                    client.setLastSeen(System.currentTimeMillis());
+                    continue;
+                }
 
-                t.setDaemon(true);
-                t.start();
+                // add new client. the profile is downloaded asynchronously.
+                DiscoveryData data = new DiscoveryData();
+                data.read(mBuffer);
+                mWorker.execute(() -> addUser(address, data));
 
+            } catch (ClosedChannelException ex) {
+                break;
             } catch (Exception ex) {
                 Logs.error(getClass(), "Error processing packet. {0}", ex);
             }
         }
     }
 
-    ////////////////////////////////////////////////////////////////////////////
-    // Properties  and other public methods
-    ////////////////////////////////////////////////////////////////////////////     
     /**
-     * Gets the read-only user list property.
+     * Gets the list of the users found.
      * <p>
-     * You can bind or attach listener to this property, but since it is
-     * readonly, you can not change the values.</p>
+     * Listeners attached to it get the changes in batches. Only the discovery
+     * server changes it.</p>
      *
      * @return
      */
-    public SimpleMapProperty<Integer, Client> userListProperty() {
+    public PeerRegistry userList() {
         return mUserList;
     }
 
@@ -167,30 +326,87 @@ public class SubnetServer implements Runnable {
         int key = SocketUtils.addressAsInteger(address);
         Client client = mUserList.get(key);
 
-        // add new user
-        if (client == null && port != -1) {
+        // remove the disconnected user
+        if (port == -1) {
+            if (client != null) {
+                removeUser(key, client);
+            }
+            return;
+        }
+
+        // add new user, and let it know about us at once
+        if (client == null) {
             client = new Client(new InetSocketAddress(address, port));
             mUserList.put(key, client);
+            Core.instance().subnet().setPeerCount(mUserList.size());
+            Core.instance().subnet().reply(address);
         }
 
-        if (client != null) {
+        // the user is alive
+        long now = System.currentTimeMillis();
+        client.setLastSeen(now);
+        mExpiry.schedule(key, now + getTimeToLive());
 
-            // remove the disconnected user
-            if (port == -1) {
-                client.setConnected(false);
-                mUserList.remove(key);
+        // update user port
+        if (client.getPort() != port) {
+            client.updateAddress(new InetSocketAddress(address, port));
+        }
+
+        // check server
+        if (!client.isConnected() || dd.getState() != client.getState()) {
+            if (client.isConnected() && client.isProfileCurrent(dd)) {
+                client.setState(dd.getState());
+            } else {
+                client.downloadProfileAsync(dd.getState());
             }
+        }
+    }
 
-            // update user port
-            if (port != -1 && client.getPort() != port) {
-                client.updateAddress(new InetSocketAddress(address, port));
+    // list the users of the last run. they expire unless they announce.
+    private void restoreUsers() {
+        long now = System.currentTimeMillis();
+        for (Client client : mCache.load(now)) {
+            int key = client.getIntegerAddress();
+            if (mUserList.get(key) == null) {
+                mUserList.put(key, client);
+                mExpiry.schedule(key, now + getTimeToLive());
             }
+        }
+        Core.instance().subnet().setPeerCount(mUserList.size());
+    }
 
-            // check server
-            if (!client.isConnected() || dd.getState() != client.getState()) {
-                client.downloadProfile(dd.getState());
+    // remove a user from the list
+    private void removeUser(int key, Client client) {
+        mExpiry.remove(key);
+        mUserList.remove(key);
+        client.setConnected(false);
+        client.close();
+        Core.instance().subnet().setPeerCount(mUserList.size());
+    }
+
+    // remove the users not heard from for too long
+    private void expireUsers() {
+        long now = System.currentTimeMillis();
+        for (Integer key : mExpiry.advance(now)) {
+            Client client = mUserList.get(key);
+            if (client == null) {
+                continue;
+            }
+            // seen by the receiving thread, which does not move the deadline
+            long deadline = client.getLastSeen() + getTimeToLive();
+            if (deadline > now) {
+                mExpiry.schedule(key, deadline);
+                continue;
             }
+            Logs.info(getClass(), "{0} is gone. Last seen {1}",
+                    client.getHostString(), new Date(client.getLastSeen()));
+            removeUser(key, client);
         }
     }
 
+    // time to keep a user without hearing from it
+    private long getTimeToLive() {
+        return 2 * Core.instance().subnet().getMaxAnnounceInterval() + mGracePeriod;
+    }
+
 }
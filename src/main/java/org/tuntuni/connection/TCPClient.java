@@ -15,20 +15,20 @@
  */
 package org.tuntuni.connection;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.LinkedList;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import org.tuntuni.models.ConnectFor;
-import org.tuntuni.models.Logs;
 import org.tuntuni.util.Commons;
 
 /**
@@ -36,19 +36,43 @@ import org.tuntuni.util.Commons;
  * <p>
  * You can not create new client directly. To create a client use
  * {@linkplain Client.open()} method.</p>
+ * <p>
+ * Requests are sent over a small pool of persistent connections to the
+ * server. Up to {@value #MAX_PIPELINED_REQUESTS} requests may wait for their
+ * responses on the same connection before another connection is opened. An
+ * unused connection is closed after {@link #ALIVE_PERIOD} milliseconds.</p>
+ * <p>
+ * Responses of asynchronous requests are processed on a shared executor of
+ * at most {@value #MAX_ASYNC_THREAD} threads.</p>
+ * <p>
+ * Every request has a timeout, by default the one of its type given by
+ * {@linkplain getTimeout()}. The timeout is sent to the server, which drops
+ * the request if it could not start on it in time. Cancelling the future of a
+ * request also drops it.</p>
  */
 public abstract class TCPClient {
 
     public static int ALIVE_PERIOD = 5 * 60_000; // 5 min alive period
+    public static final int MAX_CONNECTIONS = 2;
+    public static final int MAX_PIPELINED_REQUESTS = 16;
+    public static final int MAX_ASYNC_THREAD = 4;
+    public static final int MAX_ASYNC_QUEUE = 1024;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 5_000;
+    public static final int PROFILE_TIMEOUT_MILLIS = 15_000;
+
+    // runs the continuations of all asynchronous requests
+    private static final ThreadPoolExecutor ASYNC_EXECUTOR = createExecutor();
 
     // to connect with server     
     private InetSocketAddress mAddress;
     private final BooleanProperty mConnected;
+    private final LinkedList<PeerConnection> mConnections;
 
     // hidesthe constructor and handle it with static open() method
     public TCPClient(InetSocketAddress socket) {
         mAddress = socket;
         mConnected = new SimpleBooleanProperty(false);
+        mConnections = new LinkedList<>();
     }
 
     @Override
@@ -106,10 +130,25 @@ public abstract class TCPClient {
      * @param address
      */
     public void updateAddress(InetSocketAddress address) {
-        mAddress = address;
+        synchronized (mConnections) {
+            mAddress = address;
+            mConnections.forEach((conn) -> ConnectionPool.instance().close(conn));
+            mConnections.clear();
+        }
         setConnected(false);
     }
 
+    /**
+     * Closes all connections to the server. A new one is opened on the next
+     * request.
+     */
+    void close() {
+        synchronized (mConnections) {
+            mConnections.forEach((conn) -> ConnectionPool.instance().close(conn));
+            mConnections.clear();
+        }
+    }
+
     /**
      * Gets the host address associated with this client.
      *
@@ -168,45 +207,142 @@ public abstract class TCPClient {
     }
 
     /**
-     * Sends a request to the server.
+     * Sends a request to the server and waits for the response.
      *
      * @param status ConnectFor of the request
      * @param data Any data to pass along the request
-     * @return
+     * @return the response; or {@code null} if the request failed.
      */
     Object request(ConnectFor status, Serializable... data) {
-        // create a socket
-        try (Socket socket = new Socket()) {
-            // connect the socket with given address
-            socket.connect(mAddress, 1000);
-
-            try ( // get all input streams from socket
-                    OutputStream out = socket.getOutputStream();
-                    ObjectOutputStream oos = new ObjectOutputStream(out);
-                    InputStream in = socket.getInputStream();
-                    ObjectInputStream ois = new ObjectInputStream(in);) {
-
-                // write status
-                oos.writeByte(status.data());
-                oos.flush();
-                // write data length
-                oos.writeInt(data.length);
-                oos.flush();
-                // send all data
-                for (Object o : data) {
-                    oos.writeObject(o);
-                    oos.flush();
-                }
+        try {
+            return requestAsync(status, data).get();
+        } catch (ExecutionException ex) {
+            // failed to connect or the connection was lost
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
 
-                // return result
-                return ois.readObject();
+    /**
+     * Sends a request to the server without waiting for the response.
+     *
+     * @param status ConnectFor of the request
+     * @param data Any data to pass along the request
+     * @return the future response of the request
+     */
+    CompletableFuture<Object> requestAsync(ConnectFor status, Serializable... data) {
+        return requestAsync(getTimeout(status), status, data);
+    }
+
+    /**
+     * Sends a request to the server with a timeout.
+     *
+     * @param timeout time in milliseconds to wait for the response; or 0 to
+     * wait forever.
+     * @param status ConnectFor of the request
+     * @param data Any data to pass along the request
+     * @return the future response of the request
+     */
+    CompletableFuture<Object> requestAsync(int timeout, ConnectFor status,
+            Serializable... data) {
+        return acquire().send(status, timeout, data);
+    }
+
+    /**
+     * Sends a request with a value that is already encoded. Useful to send the
+     * same value to many servers.
+     *
+     * @param status ConnectFor of the request
+     * @param value the encoded value to pass along the request
+     * @param data Any other data to pass after the value
+     * @return the future response of the request
+     */
+    CompletableFuture<Object> requestAsync(ConnectFor status, EncodedValue value,
+            Serializable... data) {
+        Object[] params = new Object[data.length + 1];
+        params[0] = value;
+        System.arraycopy(data, 0, params, 1, data.length);
+        return acquire().send(status, getTimeout(status), params);
+    }
+
+    /**
+     * Gets the default timeout of a type of requests.
+     *
+     * @param status ConnectFor of the request
+     * @return timeout in milliseconds
+     */
+    static int getTimeout(ConnectFor status) {
+        switch (status) {
+            case PROFILE:
+            case PROFILE_UPDATE:
+                // may carry the avatar
+                return PROFILE_TIMEOUT_MILLIS;
+            default:
+                return DEFAULT_TIMEOUT_MILLIS;
+        }
+    }
+
+    /**
+     * Cancels the request when the future depending on its response is
+     * cancelled.
+     *
+     * @param <T> type of the result
+     * @param future the dependent future
+     * @param request the future response of the request
+     * @return the dependent future
+     */
+    static <T> CompletableFuture<T> cancelling(CompletableFuture<T> future,
+            CompletableFuture<?> request) {
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                request.cancel(false);
             }
-        } catch (ClassNotFoundException ex) {
-            Logs.error(getClass(), "Unrecognized object received", ex);
-        } catch (IOException ex) {
-            //Logs.severe(null, ex);
+        });
+        return future;
+    }
+
+    /**
+     * Gets the shared executor to run the continuations of asynchronous
+     * requests.
+     *
+     * @return
+     */
+    static Executor executor() {
+        return ASYNC_EXECUTOR;
+    }
+
+    // bounded pool of daemon threads. when the queue is full the caller runs
+    // the task itself, which slows down whoever is producing the work.
+    private static ThreadPoolExecutor createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_ASYNC_THREAD, MAX_ASYNC_THREAD, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_ASYNC_QUEUE), (runnable) -> {
+                    Thread thread = new Thread(runnable, "TCPClient-async");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // gets the least busy connection, opening a new one if necessary
+    private PeerConnection acquire() {
+        synchronized (mConnections) {
+            mConnections.removeIf((conn) -> conn.isClosed());
+            PeerConnection best = null;
+            for (PeerConnection conn : mConnections) {
+                if (best == null || conn.getPendingCount() < best.getPendingCount()) {
+                    best = conn;
+                }
+            }
+            if (best == null || (best.getPendingCount() >= MAX_PIPELINED_REQUESTS
+                    && mConnections.size() < MAX_CONNECTIONS)) {
+                best = ConnectionPool.instance().open(mAddress);
+                mConnections.add(best);
+            }
+            return best;
         }
-        return null;
     }
 
 }
@@ -15,29 +15,74 @@
  */
 package org.tuntuni.connection;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.tuntuni.models.ConnectFor;
 import org.tuntuni.models.Logs;
 
 /**
  * To listen and respond to clients sockets.
+ * <p>
+ * All client connections are multiplexed on a single selector thread using
+ * non-blocking channels. Only the {@linkplain getResponse()} calls are run
+ * on a small pool of worker threads, so a slow or idle peer never occupies a
+ * thread while the server waits for its data.</p>
+ * <p>
+ * Connections are persistent: a client may send any number of requests on
+ * the same connection without waiting for previous responses. Connections
+ * idle for longer than {@link TCPClient#ALIVE_PERIOD} are closed.</p>
+ * <p>
+ * The server sheds load instead of queuing it without bound. At most
+ * {@value #MAX_CONNECTIONS} connections are accepted, and at most
+ * {@value #MAX_QUEUED_REQUESTS} requests wait for a worker; more are refused
+ * at once with a "Server busy" error. A connection with
+ * {@value #MAX_PENDING_REQUESTS} requests in progress is not read until some
+ * of them are responded. Requests of each peer may also be rate limited per
+ * type, see {@linkplain getRateLimit()}.</p>
+ * <p>
+ * A request is dropped without a response if its timeout has passed or the
+ * client has cancelled it before a worker could start on it.</p>
  */
 public abstract class TCPServer {
 
-    public static final int MAX_EXECUTOR_THREAD = 10;
+    public static final int MAX_EXECUTOR_THREAD = 4;
+    public static final int SWEEP_INTERVAL_MILLIS = 5_000;
+    public static final int MAX_CONNECTIONS = 256;
+    public static final int MAX_QUEUED_REQUESTS = 256;
+    public static final int MAX_PENDING_REQUESTS = 32;
 
     private final String mName;
     private Exception mError;
-    private ServerSocket mSSocket;
+    private ServerSocketChannel mChannel;
+    private Selector mSelector;
     private final ExecutorService mExecutor;
+    private final ThreadPoolExecutor mWorkers;
+    private final ConcurrentLinkedQueue<Runnable> mSelectorTasks;
+    // used from the selector thread only
+    private final HashMap<InetAddress, TokenBucket[]> mRateLimits;
+    // counters of shed load
+    private final AtomicLong mRejectedConnections;
+    private final AtomicLong mRejectedRequests;
+    private final AtomicLong mLimitedRequests;
+    private final AtomicLong mDroppedRequests;
     private int[] mPorts;
 
     /**
@@ -57,7 +102,17 @@ public abstract class TCPServer {
         if (mPorts == null || mPorts.length == 0) {
             mPorts = new int[]{0};
         }
-        mExecutor = Executors.newFixedThreadPool(MAX_EXECUTOR_THREAD);
+        // runs the selector loop
+        mExecutor = Executors.newSingleThreadExecutor();
+        mWorkers = new ThreadPoolExecutor(MAX_EXECUTOR_THREAD, MAX_EXECUTOR_THREAD,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS),
+                new ThreadPoolExecutor.AbortPolicy());
+        mSelectorTasks = new ConcurrentLinkedQueue<>();
+        mRateLimits = new HashMap<>();
+        mRejectedConnections = new AtomicLong();
+        mRejectedRequests = new AtomicLong();
+        mLimitedRequests = new AtomicLong();
+        mDroppedRequests = new AtomicLong();
     }
 
     /**
@@ -75,7 +130,8 @@ public abstract class TCPServer {
      * @return True only if server channel and selector is open
      */
     public boolean isOpen() {
-        return (mSSocket != null && !mSSocket.isClosed() && mSSocket.isBound());
+        return mChannel != null && mChannel.isOpen()
+                && mSelector != null && mSelector.isOpen();
     }
 
     /**
@@ -88,21 +144,58 @@ public abstract class TCPServer {
         return mError;
     }
 
+    /**
+     * Gets the number of connections closed because there were too many.
+     *
+     * @return
+     */
+    public long getRejectedConnections() {
+        return mRejectedConnections.get();
+    }
+
+    /**
+     * Gets the number of requests refused because all workers were busy.
+     *
+     * @return
+     */
+    public long getRejectedRequests() {
+        return mRejectedRequests.get();
+    }
+
+    /**
+     * Gets the number of requests refused by the rate limits.
+     *
+     * @return
+     */
+    public long getLimitedRequests() {
+        return mLimitedRequests.get();
+    }
+
+    /**
+     * Gets the number of requests dropped because they were expired or
+     * cancelled.
+     *
+     * @return
+     */
+    public long getDroppedRequests() {
+        return mDroppedRequests.get();
+    }
+
     /**
      * Gets the port to which the server is bound to or -1 if not
      *
      * @return
      */
     public int getPort() {
-        return isOpen() ? mSSocket.getLocalPort() : -1;
+        return isOpen() ? mChannel.socket().getLocalPort() : -1;
     }
 
     /**
      * Initializes the server.
      * <p>
-     * It creates a server socket and try to bind it to the first available port
-     * from the given list. If no port list is null or empty, it chooses any
-     * random port. </p>
+     * It creates a server channel and try to bind it to the first available
+     * port from the given list. If no port list is null or empty, it chooses
+     * any random port. </p>
      * <p>
      * Please call {@linkplain start()} to start the server after initializing
      * it.</p>
@@ -110,13 +203,23 @@ public abstract class TCPServer {
      * @throws java.io.IOException Failed to open a server-socket
      */
     public void initialize() throws IOException {
+        mSelector = Selector.open();
         // try create server channel for each of the given ports
         for (int port : mPorts) {
+            ServerSocketChannel channel = null;
             try {
                 // Create the server socket channel
-                mSSocket = new ServerSocket(port);
+                channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(port));
+                channel.configureBlocking(false);
+                channel.register(mSelector, SelectionKey.OP_ACCEPT);
+                // only a channel ready to accept is kept
+                mChannel = channel;
                 break;
             } catch (IOException ex) {
+                if (channel != null) {
+                    channel.close();
+                }
                 Logs.warning(getName(), "Could not bind to {0}", port);
             }
         }
@@ -148,16 +251,20 @@ public abstract class TCPServer {
      * It may take a while to stop the server completely.</p>
      */
     public void stop() {
-        // close server socket
+        // close server channel. the selector loop closes the rest.
         try {
-            if (isOpen()) {
-                mSSocket.close();
+            if (mChannel != null) {
+                mChannel.close();
+            }
+            if (mSelector != null) {
+                mSelector.wakeup();
             }
         } catch (Exception ex) {
             Logs.warning(getName(), "Error stopping server. {0}", ex);
         }
         // shutdown executors
         mExecutor.shutdownNow();
+        mWorkers.shutdownNow();
     }
 
     // runnable containing the infinite server loop.
@@ -165,70 +272,261 @@ public abstract class TCPServer {
     private void runServer() {
         // Infinite server loop
         Logs.info(getName(), "Opened @ {0}", getPort());
+        long lastSweep = System.currentTimeMillis();
         while (isOpen()) {
             try {
-                Socket socket = mSSocket.accept();
-                // process the getResponse in a separate thread
-                mExecutor.submit(() -> {
-                    processSocket(socket);
-                    closeSocket(socket);
-                });
+                mSelector.select(SWEEP_INTERVAL_MILLIS);
+                runSelectorTasks();
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    processKey(key);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                    closeIdle(now - TCPClient.ALIVE_PERIOD - SWEEP_INTERVAL_MILLIS);
+                    sweepRateLimits();
+                    lastSweep = now;
+                }
+            } catch (ClosedSelectorException ex) {
+                break;
             } catch (IOException ex) {
                 if (isOpen()) {
-                    Logs.error(getName(), "Accept failure. {0}", ex);
+                    Logs.error(getName(), "Select failure. {0}", ex);
                 }
             }
         }
+        // close all remaining connections
+        try {
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.attachment() instanceof ServerConnection) {
+                    ((ServerConnection) key.attachment()).close();
+                }
+            }
+            mSelector.close();
+        } catch (ClosedSelectorException | IOException ex) {
+        }
         Logs.info(getName(), "Stopped listening");
     }
 
-    // process a selection key
-    void processSocket(Socket socket) {
+    // close all connections that are idle since the given time
+    private void closeIdle(long time) {
+        for (SelectionKey key : mSelector.keys()) {
+            Object conn = key.attachment();
+            if (conn instanceof ServerConnection
+                    && ((ServerConnection) conn).isIdleSince(time)) {
+                ((ServerConnection) conn).close();
+            }
+        }
+    }
 
-        try ( // DON'T CHANGE THE ORDER
-                InputStream in = socket.getInputStream();
-                ObjectInputStream ois = new ObjectInputStream(in);
-                OutputStream out = socket.getOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(out);) {
+    // forget the peers that have not sent anything for a while
+    private void sweepRateLimits() {
+        long now = System.nanoTime();
+        mRateLimits.values().removeIf((buckets) -> {
+            for (TokenBucket bucket : buckets) {
+                if (bucket != null && !bucket.isFull(now)) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
 
-            // response type
-            ConnectFor status = ConnectFor.from(ois.readByte());
-            // param length
-            int length = ois.readInt();
+    // run the tasks posted from worker threads
+    private void runSelectorTasks() {
+        Runnable task;
+        while ((task = mSelectorTasks.poll()) != null) {
+            task.run();
+        }
+    }
 
-            // read all params
-            Object[] data = new Object[length];
-            for (int i = 0; i < length; ++i) {
-                data[i] = ois.readObject();
+    // process a selection key
+    private void processKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        ServerConnection conn = (ServerConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                conn.read();
+                dispatch(conn);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(conn);
             }
+        } catch (EOFException ex) {
+            conn.close();
+        } catch (IOException ex) {
+            Logs.warning(getName(), "{0} from {1}", ex.getMessage(),
+                    conn.channel().socket().getRemoteSocketAddress());
+            conn.close();
+        }
+    }
+
+    // accept a new client connection
+    private void accept() {
+        try {
+            SocketChannel channel = mChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            // the selector also has the key of the server channel
+            if (mSelector.keys().size() > MAX_CONNECTIONS) {
+                mRejectedConnections.incrementAndGet();
+                channel.close();
+                return;
+            }
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            key.attach(new ServerConnection(channel, key));
+        } catch (IOException ex) {
+            if (isOpen()) {
+                Logs.error(getName(), "Accept failure. {0}", ex);
+            }
+        }
+    }
 
-            // send response  
-            Object result = null;
+    // hand over the received requests to the workers, as long as the
+    // connection does not have too many requests in progress
+    private void dispatch(ServerConnection conn) throws IOException {
+        if (!conn.key().isValid()) {
+            return;
+        }
+        RpcFrame request;
+        while (conn.getPending() < MAX_PENDING_REQUESTS
+                && (request = conn.next()) != null) {
+            final RpcFrame frame = request;
+            if (frame.getType() == ConnectFor.CANCEL) {
+                cancel(conn, frame);
+                continue;
+            }
+            if (!allow(conn, frame.getType())) {
+                mLimitedRequests.incrementAndGet();
+                refuse(conn, frame, "Too many requests");
+                continue;
+            }
             try {
-                result = getResponse(status, socket, data);
+                mWorkers.execute(() -> processRequest(conn, frame));
+            } catch (RejectedExecutionException ex) {
+                mRejectedRequests.incrementAndGet();
+                refuse(conn, frame, "Server busy");
+            }
+        }
+        flush(conn);
+    }
+
+    // respond with an error at once
+    private void refuse(ServerConnection conn, RpcFrame request, String reason) {
+        RpcFrame response = RpcFrame.response(request, new Exception(reason));
+        RpcMetrics.server().record(request.getType(), request.getAge(System.nanoTime()),
+                request.getSize(), response.getSize(), true);
+        conn.reply(response);
+    }
+
+    // mark the request given in a cancel frame as cancelled
+    private void cancel(ServerConnection conn, RpcFrame frame) {
+        conn.skip(frame);
+        Object[] params = frame.getParams();
+        if (params != null && params.length > 0 && params[0] instanceof Integer) {
+            conn.cancel((Integer) params[0]);
+        }
+    }
+
+    // take a token from the bucket of the peer for this type of request
+    private boolean allow(ServerConnection conn, ConnectFor type) {
+        int[] limit = getRateLimit(type);
+        if (limit == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        InetAddress peer = conn.channel().socket().getInetAddress();
+        TokenBucket[] buckets = mRateLimits.computeIfAbsent(peer,
+                (address) -> new TokenBucket[ConnectFor.values().length]);
+        TokenBucket bucket = buckets[type.ordinal()];
+        if (bucket == null) {
+            bucket = new TokenBucket(limit[0], limit[1], now);
+            buckets[type.ordinal()] = bucket;
+        }
+        return bucket.tryAcquire(now);
+    }
+
+    // write pending data and update interest of the key. a connection with
+    // too many requests in progress is not read until some are responded.
+    private void flush(ServerConnection conn) throws IOException {
+        if (!conn.key().isValid()) {
+            return;
+        }
+        int ops = conn.getPending() < MAX_PENDING_REQUESTS ? SelectionKey.OP_READ : 0;
+        if (!conn.write()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        conn.key().interestOps(ops);
+    }
+
+    // run in a worker thread to get the response of a request
+    private void processRequest(ServerConnection conn, RpcFrame request) {
+        // the client is not waiting for it anymore
+        if (request.isExpired(System.nanoTime()) || conn.isCancelled(request.getId())) {
+            mDroppedRequests.incrementAndGet();
+            RpcMetrics.server().record(request.getType(), request.getAge(System.nanoTime()),
+                    request.getSize(), 0, true);
+            mSelectorTasks.add(() -> {
+                conn.skip(request);
+                try {
+                    dispatch(conn);
+                } catch (IOException ex) {
+                    conn.close();
+                }
+            });
+            mSelector.wakeup();
+            return;
+        }
+        Socket socket = conn.channel().socket();
+        Object result = null;
+        Object[] params = request.getParams();
+        if (params == null) {
+            result = new Exception("Invalid request parameters");
+        } else {
+            try {
+                result = getResponse(request.getType(), socket, params);
             } catch (Exception e) {
                 // failed to get response
                 Logs.warning(getClass(), "{0}", e);
             }
-            if (result != null) {
-                oos.writeObject(result);
-                oos.flush();
-            }
-
-        } catch (IOException ex) {
-            Logs.warning(getClass(), ex.getMessage());
-        } catch (ClassNotFoundException ex) {
-            Logs.warning(this.getName(), ex.getMessage());
         }
+        RpcFrame response = RpcFrame.response(request, result);
+        RpcMetrics.server().record(request.getType(), request.getAge(System.nanoTime()),
+                request.getSize(), response.getSize(),
+                result instanceof Exception || params == null);
+        // hand over the response to the selector thread
+        mSelectorTasks.add(() -> {
+            conn.reply(response);
+            try {
+                // continue with the requests held back, if any
+                dispatch(conn);
+            } catch (IOException ex) {
+                conn.close();
+            }
+        });
+        mSelector.wakeup();
     }
 
-    // close the socket
-    void closeSocket(Socket socket) {
-        try {
-            socket.close();
-        } catch (IOException ex) {
-            Logs.error(this.getName(), "Failed to close socket. {0}", ex);
-        }
+    /**
+     * Gets the rate limit of a type of requests from a single peer. Override
+     * this to limit the requests; by default there is no limit.
+     *
+     * @param type type of the request
+     * @return {@code {rate, burst}} in requests per second and the maximum
+     * burst; or {@code null} for no limit.
+     */
+    int[] getRateLimit(ConnectFor type) {
+        return null;
     }
 
     /**
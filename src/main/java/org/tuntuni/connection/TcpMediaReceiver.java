@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.function.IntFunction;
+
+/**
+ * Receives the frames on a TCP connection, framed by {@link MediaCodec}. The
+ * first connection is accepted on the first receive.
+ */
+final class TcpMediaReceiver implements MediaReceiver {
+
+    private ServerSocket mServer;
+    private Socket mClient;
+    private DataInputStream mInput;
+
+    @Override
+    public void open(int port) throws IOException {
+        mServer = new ServerSocket(port);
+    }
+
+    @Override
+    public DataFrame receive(IntFunction<DataFrame> factory) throws IOException {
+        if (!isConnected()) {
+            accept();
+        }
+        try {
+            return MediaCodec.read(mInput, factory);
+        } catch (IOException ex) {
+            // the stream has ended or is out of step with the frames.
+            // wait for a new connection on the next receive
+            disconnect();
+            throw ex;
+        }
+    }
+
+    private void disconnect() throws IOException {
+        mInput = null;
+        if (mClient != null) {
+            mClient.close();
+            mClient = null;
+        }
+    }
+
+    private void accept() throws IOException {
+        if (!isOpen()) {
+            throw new IOException("Server was not initialized");
+        }
+        mClient = mServer.accept();
+        mInput = new DataInputStream(new BufferedInputStream(mClient.getInputStream()));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mServer != null
+                && !mServer.isClosed();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isOpen()
+                && mInput != null
+                && mClient != null
+                && !mClient.isClosed();
+    }
+
+    @Override
+    public int getPort() {
+        return mServer == null ? -1 : mServer.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return mClient != null ? mClient.getRemoteSocketAddress() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mServer != null) {
+                mServer.close();
+            }
+        } finally {
+            disconnect();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Sends the frames on a TCP connection, framed by {@link MediaCodec}.
+ */
+final class TcpMediaSender implements MediaSender {
+
+    static final int CONNECT_TIMEOUT = 5000;
+
+    private Socket mSocket;
+    private DataOutputStream mOutput;
+
+    @Override
+    public void connect(InetSocketAddress address) throws IOException {
+        mSocket = new Socket();
+        mSocket.connect(address, CONNECT_TIMEOUT);
+        mOutput = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream()));
+    }
+
+    @Override
+    public void send(DataFrame frame) throws IOException {
+        MediaCodec.write(mOutput, frame);
+        mOutput.flush();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mSocket != null
+                && mOutput != null
+                && !mSocket.isClosed()
+                && mSocket.isConnected();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutput = null;
+        if (mSocket != null) {
+            mSocket.close();
+        }
+    }
+}
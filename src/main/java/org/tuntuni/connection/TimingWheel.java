@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A hashed timing wheel to expire a large number of keys with a single timer.
+ * <p>
+ * The wheel has a fixed number of slots, each covering one tick. A key is
+ * kept in the slot of its deadline, so advancing the wheel only looks at the
+ * keys of the slots passed. Extending the deadline of a key only updates the
+ * key; it is moved to a later slot when its old slot comes up. Keys further
+ * away than one turn of the wheel simply stay for more turns.</p>
+ * <p>
+ * It is not thread-safe.</p>
+ *
+ * @param <K> type of the keys
+ */
+class TimingWheel<K> {
+
+    private final long mTick;
+    private final ArrayList<HashSet<K>> mSlots;
+    private final HashMap<K, Entry> mEntries;
+    private long mCurrent;
+
+    /**
+     * Creates a new wheel.
+     *
+     * @param tick time covered by a slot, in milliseconds
+     * @param slots number of slots
+     * @param now current time in milliseconds
+     */
+    TimingWheel(long tick, int slots, long now) {
+        mTick = tick;
+        mSlots = new ArrayList<>(slots);
+        for (int i = 0; i < slots; ++i) {
+            mSlots.add(new HashSet<>());
+        }
+        mEntries = new HashMap<>();
+        mCurrent = now / tick;
+    }
+
+    /**
+     * Sets the deadline of a key, adding it if it is new.
+     *
+     * @param key the key
+     * @param deadline time to expire in milliseconds
+     */
+    void schedule(K key, long deadline) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(key, entry);
+        } else if (deadline >= entry.mDeadline) {
+            // handled when its current slot comes up
+            entry.mDeadline = deadline;
+            return;
+        } else {
+            slot(entry.mTick).remove(key);
+        }
+        entry.mDeadline = deadline;
+        place(key, entry, mCurrent);
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key the key
+     */
+    void remove(K key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            slot(entry.mTick).remove(key);
+        }
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Advances the wheel up to the current time.
+     *
+     * @param now current time in milliseconds
+     * @return the keys that have expired, which are removed from the wheel
+     */
+    List<K> advance(long now) {
+        ArrayList<K> expired = new ArrayList<>();
+        long target = now / mTick;
+        // no need to turn more than once
+        long start = Math.max(mCurrent, target - mSlots.size() + 1);
+        for (long tick = start; tick <= target; ++tick) {
+            HashSet<K> slot = slot(tick);
+            if (slot.isEmpty()) {
+                continue;
+            }
+            ArrayList<K> keys = new ArrayList<>(slot);
+            slot.clear();
+            for (K key : keys) {
+                Entry entry = mEntries.get(key);
+                if (entry.mDeadline <= now) {
+                    mEntries.remove(key);
+                    expired.add(key);
+                } else {
+                    // never into a slot that is already passed
+                    place(key, entry, target + 1);
+                }
+            }
+        }
+        mCurrent = Math.max(mCurrent, target + 1);
+        return expired;
+    }
+
+    private void place(K key, Entry entry, long first) {
+        entry.mTick = Math.max(entry.mDeadline / mTick, first);
+        slot(entry.mTick).add(key);
+    }
+
+    private HashSet<K> slot(long tick) {
+        return mSlots.get((int) (tick % mSlots.size()));
+    }
+
+    // the deadline of a key and the tick of the slot it is in
+    private static class Entry {
+
+        private long mDeadline;
+        private long mTick;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+/**
+ * A token bucket to limit the rate of requests.
+ * <p>
+ * The bucket holds up to a burst of tokens and is refilled at a fixed rate.
+ * Every request takes one token, and is refused when there is none. It is not
+ * thread-safe; the server uses it from the selector thread only.</p>
+ */
+class TokenBucket {
+
+    private final double mCapacity;
+    private final double mTokensPerNano;
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param rate tokens added per second
+     * @param burst maximum number of tokens
+     * @param now current time in nanoseconds
+     */
+    TokenBucket(int rate, int burst, long now) {
+        mCapacity = burst;
+        mTokensPerNano = rate / 1e9;
+        mTokens = burst;
+        mLastRefill = now;
+    }
+
+    /**
+     * Takes a token if there is any.
+     *
+     * @param now current time in nanoseconds
+     * @return true if a token was taken
+     */
+    boolean tryAcquire(long now) {
+        refill(now);
+        if (mTokens < 1) {
+            return false;
+        }
+        mTokens -= 1;
+        return true;
+    }
+
+    /**
+     * Checks if the bucket is full, i.e. it has not been used for a while.
+     *
+     * @param now current time in nanoseconds
+     * @return
+     */
+    boolean isFull(long now) {
+        refill(now);
+        return mTokens >= mCapacity;
+    }
+
+    private void refill(long now) {
+        mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mTokensPerNano);
+        mLastRefill = now;
+    }
+}
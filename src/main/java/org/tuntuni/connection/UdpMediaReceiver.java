@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+import org.tuntuni.util.BufferPool;
+
+/**
+ * Receives the frames sent by {@link UdpMediaSender}.
+ * <p>
+ * Fragments are copied straight into a frame leased from the shared
+ * {@link BufferPool} until it is complete. Only the last
+ * {@value #REASSEMBLY_WINDOW} incomplete frames are kept; older ones have
+ * lost a fragment and are released. Packets from any address other than the
+ * first sender are ignored.</p>
+ */
+final class UdpMediaReceiver implements MediaReceiver {
+
+    static final int REASSEMBLY_WINDOW = 4;
+    static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+    static final int MAX_FRAGMENTS
+            = UdpMediaSender.fragmentCount(MediaCodec.MAX_FRAME_SIZE);
+
+    private DatagramSocket mSocket;
+    private InetSocketAddress mRemote;
+    private final byte[] mPacket;
+    private final ByteBuffer mHeader;
+    private final LinkedHashMap<Integer, Partial> mPartial;
+
+    UdpMediaReceiver() {
+        mPacket = new byte[UdpMediaSender.MAX_DATAGRAM_SIZE];
+        mHeader = ByteBuffer.wrap(mPacket);
+        mPartial = new LinkedHashMap<Integer, Partial>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Partial> eldest) {
+                if (size() > REASSEMBLY_WINDOW) {
+                    eldest.getValue().mFrame.release();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public void open(int port) throws IOException {
+        mSocket = new DatagramSocket(port);
+        mSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+    }
+
+    @Override
+    public DataFrame receive(IntFunction<DataFrame> factory) throws IOException {
+        if (!isOpen()) {
+            throw new IOException("Server was not initialized");
+        }
+        DatagramPacket packet = new DatagramPacket(mPacket, mPacket.length);
+        while (true) {
+            packet.setLength(mPacket.length);
+            mSocket.receive(packet);
+            if (mRemote == null) {
+                mRemote = (InetSocketAddress) packet.getSocketAddress();
+            } else if (mRemote.getPort() != packet.getPort()
+                    || !mRemote.getAddress().equals(packet.getAddress())) {
+                continue;
+            }
+            if (packet.getLength() < UdpMediaSender.HEADER_SIZE) {
+                continue;
+            }
+            mHeader.clear();
+            int sequence = mHeader.getInt();
+            long timestamp = mHeader.getLong();
+            byte type = mHeader.get();
+            int index = mHeader.getShort() & 0xFFFF;
+            int count = mHeader.getShort() & 0xFFFF;
+            if (index >= count || count > MAX_FRAGMENTS) {
+                continue;
+            }
+            int offset = UdpMediaSender.HEADER_SIZE;
+            int length = packet.getLength() - offset;
+            if (count == 1) {
+                DataFrame frame = factory.apply(type);
+                if (frame != null) {
+                    frame.lease(BufferPool.instance(), length);
+                    System.arraycopy(mPacket, offset, frame.getBuffer(), 0, length);
+                    frame.setSequence(sequence);
+                    frame.setTimestamp(timestamp);
+                }
+                return frame;
+            }
+            Partial partial = mPartial.get(sequence);
+            if (partial == null) {
+                DataFrame frame = factory.apply(type);
+                if (frame == null) {
+                    continue;
+                }
+                frame.lease(BufferPool.instance(), count * UdpMediaSender.MAX_FRAGMENT_SIZE);
+                frame.setSequence(sequence);
+                frame.setTimestamp(timestamp);
+                partial = new Partial(frame, count);
+                mPartial.put(sequence, partial);
+            }
+            if (partial.add(index, mPacket, offset, length)) {
+                mPartial.remove(sequence);
+                return partial.mFrame;
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mSocket != null && !mSocket.isClosed();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isOpen() && mRemote != null;
+    }
+
+    @Override
+    public int getPort() {
+        return mSocket == null ? -1 : mSocket.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return mRemote;
+    }
+
+    @Override
+    public void close() {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+    }
+
+    // a frame being put together from its fragments
+    private static final class Partial {
+
+        private final DataFrame mFrame;
+        private final boolean[] mReceived;
+        private int mMissing;
+
+        Partial(DataFrame frame, int count) {
+            mFrame = frame;
+            mReceived = new boolean[count];
+            mMissing = count;
+        }
+
+        // returns true when the last fragment has arrived
+        boolean add(int index, byte[] data, int offset, int length) {
+            if (index >= mReceived.length || mReceived[index]
+                    || length > UdpMediaSender.MAX_FRAGMENT_SIZE) {
+                return false;
+            }
+            mReceived[index] = true;
+            System.arraycopy(data, offset, mFrame.getBuffer(),
+                    index * UdpMediaSender.MAX_FRAGMENT_SIZE, length);
+            if (index == mReceived.length - 1) {
+                mFrame.setLength(index * UdpMediaSender.MAX_FRAGMENT_SIZE + length);
+            }
+            return --mMissing == 0;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the frames as datagrams.
+ * <p>
+ * A frame is split into fragments that fit in one Ethernet packet. Each is
+ * sent as {@code [sequence:int][timestamp:long][type:byte][index:short]
+ * [count:short][payload]}, so the receiver can put the frame together
+ * again, or drop it if a fragment is lost.</p>
+ */
+final class UdpMediaSender implements MediaSender {
+
+    static final int HEADER_SIZE = 4 + 8 + 1 + 2 + 2;
+    // stays below the usual MTU of 1500 with the IP and UDP headers
+    static final int MAX_DATAGRAM_SIZE = 1400;
+    static final int MAX_FRAGMENT_SIZE = MAX_DATAGRAM_SIZE - HEADER_SIZE;
+    static final int SEND_BUFFER_SIZE = 1 << 20;
+
+    private DatagramSocket mSocket;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+    private final DatagramPacket mPacket = new DatagramPacket(mBuffer.array(), 0);
+
+    @Override
+    public void connect(InetSocketAddress address) throws IOException {
+        mSocket = new DatagramSocket();
+        mSocket.setSendBufferSize(SEND_BUFFER_SIZE);
+        mSocket.connect(address);
+    }
+
+    @Override
+    public void send(DataFrame frame) throws IOException {
+        int count = fragmentCount(frame.getLength());
+        if (count > 0xFFFF || frame.getLength() > MediaCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Frame is too large: " + frame.getLength());
+        }
+        for (int i = 0; i < count; ++i) {
+            mPacket.setLength(fragment(frame, i, count, mBuffer));
+            mSocket.send(mPacket);
+        }
+    }
+
+    /**
+     * Gets the number of fragments of a frame.
+     *
+     * @param length length of the frame
+     * @return at least 1.
+     */
+    static int fragmentCount(int length) {
+        return Math.max(1, (length + MAX_FRAGMENT_SIZE - 1) / MAX_FRAGMENT_SIZE);
+    }
+
+    /**
+     * Writes a fragment of a frame.
+     *
+     * @param frame the frame
+     * @param index index of the fragment
+     * @param count number of fragments
+     * @param buffer buffer of {@value #MAX_DATAGRAM_SIZE} bytes; it is
+     * cleared first
+     * @return length of the packet written.
+     */
+    static int fragment(DataFrame frame, int index, int count, ByteBuffer buffer) {
+        int offset = index * MAX_FRAGMENT_SIZE;
+        int length = Math.min(MAX_FRAGMENT_SIZE, frame.getLength() - offset);
+        buffer.clear();
+        buffer.putInt(frame.getSequence());
+        buffer.putLong(frame.getTimestamp());
+        buffer.put(frame.getType());
+        buffer.putShort((short) index);
+        buffer.putShort((short) count);
+        if (length > 0) {
+            buffer.put(frame.getBuffer(), offset, length);
+        }
+        return buffer.position();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mSocket != null
+                && !mSocket.isClosed()
+                && mSocket.isConnected();
+    }
+
+    @Override
+    public void close() {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+    }
+}
@@ -16,7 +16,9 @@
 package org.tuntuni.controllers;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.ResourceBundle;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -29,7 +31,6 @@ import java.util.logging.LogRecord;
 import java.util.logging.SimpleFormatter;
 import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
-import javafx.collections.MapChangeListener;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
@@ -95,43 +96,41 @@ public class MainController implements Initializable {
         updateAvatar.changed(null, null, null);
         Core.instance().user().avatarProperty().addListener(updateAvatar);
 
-        // add existing users
+        // monitor user list. the existing users come as the first change.
         userList.getItems().clear();
-        updateUserList(null, null);
-        Core.instance().scanner().userListProperty().values().forEach((client) -> {
-            Platform.runLater(() -> updateUserList(client, null));
-        });
-        // monitor user list
-        Core.instance().scanner().userListProperty().addListener((MapChangeListener.Change<? extends Integer, ? extends Client> change) -> {
-            Platform.runLater(() -> updateUserList(change.getValueAdded(), change.getValueRemoved()));
+        Core.instance().scanner().userList().addListener((added, removed) -> {
+            Platform.runLater(() -> updateUserList(added, removed));
         });
 
         showUser(null);
     }
 
     // updates the user list
-    private void updateUserList(Client add, Client remove) {
-        // add item
-        if (add != null) {
+    private void updateUserList(List<Client> added, List<Client> removed) {
+        // remove items
+        if (!removed.isEmpty()) {
+            Iterator<UserItem> it = userList.getItems().iterator();
+            while (it.hasNext()) {
+                if (removed.contains(it.next().getClient())) {
+                    it.remove();
+                }
+            }
+        }
+        // add items
+        ArrayList<UserItem> items = new ArrayList<>(added.size());
+        for (Client add : added) {
             UserItem item = UserItem.createInstance(add);
-            userList.getItems().add(item);
+            if (item == null) {
+                continue;
+            }
+            items.add(item);
             add.connectedProperty().addListener((ov, n, o) -> {
                 if (add == mSelected) {
                     disconnectNotice();
                 }
             });
         }
-        // remove item
-        if (remove != null) {
-            Iterator<UserItem> it = userList.getItems().iterator();
-            while (it.hasNext()) {
-                UserItem item = it.next();
-                if (item.getClient().equals(remove)) {
-                    it.remove();
-                    break;
-                }
-            }
-        }
+        userList.getItems().addAll(items);
         // hide user list if empty 
 //        if (userList.getItems().isEmpty()) {
 //            userList.setPrefWidth(0.0);
@@ -18,6 +18,7 @@ package org.tuntuni.controllers;
 import java.net.URL;
 import java.util.Date;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletionException;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -122,29 +123,29 @@ public class MessagingController implements Initializable {
     }
 
     private void sendMessage(String text) {
-        new Thread(() -> {
-            try {
-                Message message = new Message(text);
-                message.setClient(client());
-                message.setReceived(false);
-                message.setViewed(true);
-                message.setTime(new Date());
-                client().sendMessage(message);
+        Message message = new Message(text);
+        message.setClient(client());
+        message.setReceived(false);
+        message.setViewed(true);
+        message.setTime(new Date());
+        client().sendMessageAsync(message).whenComplete((res, err) -> {
+            if (err == null) {
                 Platform.runLater(() -> messageText.setText(""));
-
-            } catch (Exception ex) {
-                if (showNotification.isSelected()) {
-                    Platform.runLater(() -> {
-                        Notifications.create()
-                                .title("Message send failure")
-                                .text(ex.getMessage())
-                                .hideAfter(Duration.seconds(15))
-                                .showError();
-                        errorLabel.setText(ex.getMessage());
-                    });
-                }
+                return;
             }
-        }).start();
+            Throwable ex = (err instanceof CompletionException && err.getCause() != null)
+                    ? err.getCause() : err;
+            if (showNotification.isSelected()) {
+                Platform.runLater(() -> {
+                    Notifications.create()
+                            .title("Message send failure")
+                            .text(ex.getMessage())
+                            .hideAfter(Duration.seconds(15))
+                            .showError();
+                    errorLabel.setText(ex.getMessage());
+                });
+            }
+        });
     }
 
     public void messageAdded(Message message) {
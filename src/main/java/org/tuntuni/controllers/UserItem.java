@@ -16,12 +16,14 @@
 package org.tuntuni.controllers;
 
 import java.io.IOException;
+import java.util.Date;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
+import org.ocpsoft.prettytime.PrettyTime;
 import org.tuntuni.Core;
 import org.tuntuni.connection.Client;
 import org.tuntuni.models.Logs;
@@ -59,6 +61,8 @@ public class UserItem extends BorderPane {
     @FXML
     private Button unseenCount;
 
+    private static final PrettyTime PRETTY_TIME = new PrettyTime();
+
     private Client mClient;
 
     public Client getClient() {
@@ -68,9 +72,14 @@ public class UserItem extends BorderPane {
     private void setClient(Client client) throws NullPointerException {
         mClient = client;
         refresh(client.getUserData());
+        // the list view only puts the items on the screen into the scene
+        sceneProperty().addListener((ov, o, n) -> client.setShown(n != null));
         client.userdataProperty().addListener((ov, o, n) -> {
             Platform.runLater(() -> refresh(n));
         });
+        client.connectedProperty().addListener((ov, o, n) -> {
+            Platform.runLater(() -> refresh(client.getUserData()));
+        });
         client.unseenCountProperty().addListener((ov, o, n) -> {
             Platform.runLater(() -> {
                 unseenCount.setText(String.valueOf(n));
@@ -90,6 +99,10 @@ public class UserItem extends BorderPane {
         imageView.setImage(data.getAvatar(
                 imageView.getFitWidth(), imageView.getFitHeight()));
         String status = data.getStatus();
+        if (!mClient.isConnected() && mClient.getLastSeen() > 0) {
+            // known from an earlier run, not heard from yet
+            status = "Last seen " + PRETTY_TIME.format(new Date(mClient.getLastSeen()));
+        }
         statusLabel.setText(status.isEmpty() ? mClient.toString() : status);
     }
 
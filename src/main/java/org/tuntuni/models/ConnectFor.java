@@ -34,7 +34,13 @@ public enum ConnectFor {
     // accept response
     CALL_RESPONSE(6),
     // to end an ongoing call
-    END_CALL(7);
+    END_CALL(7),
+    // to receive the profile updates of a user
+    SUBSCRIBE(8),
+    // to pass the changed fields of a user profile
+    PROFILE_UPDATE(9),
+    // to drop a request the client is no longer waiting for
+    CANCEL(10);
 
     private final int mData;
 
@@ -19,14 +19,35 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
 
 /**
  * Used in broadcast request for network discovery.
+ * <p>
+ * On the network it is sent as a datagram of {@value #SIZE} bytes:
+ * {@code [magic:2][version:1][flags:1][port:4][state:4][profile version:8]
+ * [profile hash:4]}. A newer version may only append fields, so any datagram
+ * with the right magic and at least {@value #SIZE} bytes can be read.</p>
  */
 public class DiscoveryData implements Externalizable {
 
+    public static final short MAGIC = 0x544E; // "TN"
+    public static final byte VERSION = 1;
+    public static final int SIZE = 24;
+
+    // capability flags
+    // the profile hash field is set
+    public static final int FLAG_PROFILE_HASH = 1;
+    // accepts SUBSCRIBE requests for profile updates
+    public static final int FLAG_SUBSCRIBE = 1 << 1;
+    // answers PROFILE requests with a version as NOT_MODIFIED
+    public static final int FLAG_CONDITIONAL_PROFILE = 1 << 2;
+
     private int mPort;
     private int mState; 
+    private int mFlags = FLAG_SUBSCRIBE | FLAG_CONDITIONAL_PROFILE;
+    private long mProfileVersion;
+    private int mProfileHash;
 
     public DiscoveryData() { 
     }
@@ -47,6 +68,44 @@ public class DiscoveryData implements Externalizable {
         setState(in.readInt());
     }
 
+    /**
+     * Writes the datagram of this data.
+     *
+     * @param buffer the buffer to write to, with at least {@value #SIZE} bytes
+     * remaining
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.putShort(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) mFlags);
+        buffer.putInt(mPort);
+        buffer.putInt(mState);
+        buffer.putLong(mProfileVersion);
+        buffer.putInt(mProfileHash);
+    }
+
+    /**
+     * Reads a datagram written by {@linkplain write()} in place, without
+     * moving the position of the buffer.
+     *
+     * @param buffer the buffer containing the datagram from its position
+     * @return false if the data is not a valid datagram.
+     */
+    public boolean read(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < SIZE
+                || buffer.getShort(start) != MAGIC
+                || buffer.get(start + 2) < VERSION) {
+            return false;
+        }
+        mFlags = Byte.toUnsignedInt(buffer.get(start + 3));
+        mPort = buffer.getInt(start + 4);
+        mState = buffer.getInt(start + 8);
+        mProfileVersion = buffer.getLong(start + 12);
+        mProfileHash = buffer.getInt(start + 20);
+        return true;
+    }
+
     /**
      * @return the port
      */
@@ -81,4 +140,46 @@ public class DiscoveryData implements Externalizable {
     public int getState() {
         return mState;
     }
+
+    /**
+     * @return the capability flags
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    /**
+     * @return the version of the user profile
+     */
+    public long getProfileVersion() {
+        return mProfileVersion;
+    }
+
+    public void setProfileVersion(long version) {
+        mProfileVersion = version;
+    }
+
+    /**
+     * @return the hash of the user profile, if {@link #FLAG_PROFILE_HASH} is
+     * set
+     */
+    public int getProfileHash() {
+        return mProfileHash;
+    }
+
+    /**
+     * @param hash the hash of the user profile; or 0 if unknown
+     */
+    public void setProfileHash(int hash) {
+        mProfileHash = hash;
+        if (hash == 0) {
+            mFlags &= ~FLAG_PROFILE_HASH;
+        } else {
+            mFlags |= FLAG_PROFILE_HASH;
+        }
+    }
 }
@@ -15,24 +15,26 @@
  */
 package org.tuntuni.models;
 
-import java.util.UUID;
+import javafx.beans.property.LongProperty;
 import javafx.beans.property.ObjectPropertyBase;
 import javafx.beans.property.Property;
-import javafx.beans.property.SimpleStringProperty;
-import javafx.beans.property.StringProperty;
+import javafx.beans.property.SimpleLongProperty;
 import org.tuntuni.util.Database;
 
 /**
  * To persist the fields of any sub class to file.
+ * <p>
+ * The state is a version number that increases with every change. It starts
+ * from the current time, so that it keeps increasing across restarts.</p>
  */
 public abstract class Persistent {
 
     private final Database mDatabase;
-    private final StringProperty mState;
+    private final LongProperty mState;
 
     public Persistent(String name) {
         mDatabase = Database.instance(name);
-        mState = new SimpleStringProperty(UUID.randomUUID().toString());
+        mState = new SimpleLongProperty(System.currentTimeMillis());
     }
 
     // build a property. called from parent class
@@ -40,15 +42,15 @@ public abstract class Persistent {
         return new ExtendedSimpleObjectProperty<>(key, initialValue, this);
     }
 
-    void changeState() {
-        mState.set(UUID.randomUUID().toString());
+    synchronized void changeState() {
+        mState.set(mState.get() + 1);
     }
 
-    public String getState() {
+    public long getState() {
         return mState.get();
     }
 
-    public StringProperty stateProperty() {
+    public LongProperty stateProperty() {
         return mState;
     }
 
@@ -19,6 +19,9 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
 import javafx.scene.image.Image;
 import org.tuntuni.util.Commons;
 
@@ -33,6 +36,7 @@ public class UserData implements Externalizable {
     private String mStatus;
     private String mAboutMe; 
     private byte[] mAvatar;
+    private long mVersion;
 
     public UserData() {
     }
@@ -41,7 +45,16 @@ public class UserData implements Externalizable {
         mName = userName;
     }
 
+    public UserData(String userName, String status, String aboutMe, byte[] avatar) {
+        mName = userName;
+        mStatus = status;
+        mAboutMe = aboutMe;
+        mAvatar = avatar;
+    }
+
     public UserData(UserProfile profile) {
+        // read before the fields, so that the version is never newer
+        mVersion = profile.getState();
         mName = profile.getName();
         mStatus = profile.getStatus();
         mAboutMe = profile.getAboutMe(); 
@@ -49,6 +62,50 @@ public class UserData implements Externalizable {
                 profile.getAvatarImage(AVATAR_MAX_SIZE, AVATAR_MAX_SIZE));
     }
 
+    /**
+     * Builds the data with only the given fields of the profile. The other
+     * fields are {@code null}, meaning unchanged.
+     *
+     * @param profile the user profile
+     * @param fields names of the changed properties of the profile
+     * @return
+     */
+    public static UserData changes(UserProfile profile, Set<String> fields) {
+        UserData data = new UserData();
+        data.mVersion = profile.getState();
+        if (fields.contains(profile.userNameProperty().getName())) {
+            data.mName = profile.getName();
+        }
+        if (fields.contains(profile.statusProperty().getName())) {
+            data.mStatus = profile.getStatus();
+        }
+        if (fields.contains(profile.aboutMeProperty().getName())) {
+            data.mAboutMe = profile.getAboutMe();
+        }
+        if (fields.contains(profile.avatarProperty().getName())) {
+            data.mAvatar = Commons.imageToBytes(
+                    profile.getAvatarImage(AVATAR_MAX_SIZE, AVATAR_MAX_SIZE));
+        }
+        return data;
+    }
+
+    /**
+     * Applies the changes built by {@link #changes(UserProfile, Set)} to this
+     * data.
+     *
+     * @param changes the changed fields
+     * @return a new data with the changes applied
+     */
+    public UserData merge(UserData changes) {
+        UserData data = new UserData(
+                changes.mName == null ? mName : changes.mName,
+                changes.mStatus == null ? mStatus : changes.mStatus,
+                changes.mAboutMe == null ? mAboutMe : changes.mAboutMe,
+                changes.mAvatar == null ? mAvatar : changes.mAvatar);
+        data.mVersion = Math.max(mVersion, changes.mVersion);
+        return data;
+    }
+
     @Override
     public void writeExternal(ObjectOutput oo) throws IOException { 
         oo.writeUTF(mName);
@@ -56,6 +113,7 @@ public class UserData implements Externalizable {
         oo.writeUTF(mAboutMe);
         oo.writeInt(mAvatar.length);
         oo.write(mAvatar, 0, mAvatar.length);
+        oo.writeLong(mVersion);
     }
 
     @Override
@@ -65,6 +123,7 @@ public class UserData implements Externalizable {
         mAboutMe = (String) oi.readUTF();
         mAvatar = new byte[oi.readInt()];
         oi.readFully(mAvatar);        
+        mVersion = oi.readLong();
     }
 
     public String getUserName() {
@@ -91,4 +150,27 @@ public class UserData implements Externalizable {
         return mAvatar;
     }
 
+    /**
+     * Gets a hash of the profile fields, without the version. Two profiles
+     * with the same content have the same hash.
+     *
+     * @return
+     */
+    public int contentHash() {
+        return 31 * Objects.hash(mName, mStatus, mAboutMe) + Arrays.hashCode(mAvatar);
+    }
+
+    /**
+     * Gets the version of the profile this data was built from.
+     *
+     * @return
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public void setVersion(long version) {
+        mVersion = version;
+    }
+
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable byte buffers, kept in classes of power of two sizes.
+ * <p>
+ * A buffer is taken with {@link #acquire(int)} and should be given back with
+ * {@link #release(ByteBuffer)} once nobody uses it. Each class keeps at most
+ * {@value #MAX_FREE} free buffers; a buffer never given back is simply left to
+ * the garbage collector. Requests larger than {@value #MAX_SIZE} bytes are
+ * not pooled.</p>
+ * <p>
+ * A pool gives either heap or direct buffers, never both.</p>
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 256;
+    public static final int MAX_SIZE = 1 << 20;
+    public static final int MAX_FREE = 32;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    private final boolean mDirect;
+    // the free buffers of each class, each array locked on its own
+    private final ByteBuffer[][] mFree;
+    private final int[] mFreeCount;
+    private final AtomicLong mAllocated;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param direct {@code true} for direct buffers
+     */
+    public BufferPool(boolean direct) {
+        mDirect = direct;
+        mFree = new ByteBuffer[CLASS_COUNT][MAX_FREE];
+        mFreeCount = new int[CLASS_COUNT];
+        mAllocated = new AtomicLong();
+    }
+
+    /**
+     * Gets the heap pool shared by the media streams.
+     *
+     * @return
+     */
+    public static BufferPool instance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private static class InstanceHolder {
+
+        private static final BufferPool INSTANCE = new BufferPool(false);
+    }
+
+    /**
+     * Takes a buffer of at least the given size.
+     *
+     * @param size bytes needed
+     * @return a buffer with its limit set to the size; the capacity may be
+     * larger.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > MAX_SIZE) {
+            mAllocated.addAndGet(size);
+            return allocate(size);
+        }
+        int index = classOf(size);
+        ByteBuffer buffer = null;
+        ByteBuffer[] free = mFree[index];
+        synchronized (free) {
+            if (mFreeCount[index] > 0) {
+                buffer = free[--mFreeCount[index]];
+                free[mFreeCount[index]] = null;
+            }
+        }
+        if (buffer == null) {
+            mAllocated.addAndGet(MIN_SIZE << index);
+            buffer = allocate(MIN_SIZE << index);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer taken from this pool. It must not be used after.
+     *
+     * @param buffer the buffer
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != mDirect || capacity < MIN_SIZE || capacity > MAX_SIZE
+                || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int index = classOf(capacity);
+        ByteBuffer[] free = mFree[index];
+        synchronized (free) {
+            if (mFreeCount[index] < MAX_FREE) {
+                free[mFreeCount[index]++] = buffer;
+            }
+        }
+    }
+
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    /**
+     * Gets the bytes allocated so far because no free buffer was there.
+     *
+     * @return
+     */
+    public long getAllocatedBytes() {
+        return mAllocated.get();
+    }
+
+    /**
+     * Gets the number of free buffers kept.
+     *
+     * @return
+     */
+    public int getFreeCount() {
+        int count = 0;
+        for (int i = 0; i < CLASS_COUNT; ++i) {
+            synchronized (mFree[i]) {
+                count += mFreeCount[i];
+            }
+        }
+        return count;
+    }
+
+    private ByteBuffer allocate(int size) {
+        return mDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    // index of the smallest class that fits the size
+    static int classOf(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -158,10 +158,14 @@ public class Commons {
     }
 
     public static Image bytesToImage(byte[] data) {
+        return data == null ? null : bytesToImage(data, data.length);
+    }
+
+    public static Image bytesToImage(byte[] data, int length) {
         if (data == null) {
             return null;
         }
-        try (ByteArrayInputStream bais = new ByteArrayInputStream(data)) {
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(data, 0, length)) {
             return new Image(bais);
         } catch (IOException ex) {
             return null;
@@ -169,10 +173,14 @@ public class Commons {
     }
 
     public static BufferedImage bytesToBufferedImage(byte[] data) {
+        return data == null ? null : bytesToBufferedImage(data, data.length);
+    }
+
+    public static BufferedImage bytesToBufferedImage(byte[] data, int length) {
         if (data == null) {
             return null;
         }
-        try (ByteArrayInputStream bais = new ByteArrayInputStream(data)) {
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(data, 0, length)) {
             return ImageIO.read(bais);
         } catch (IOException ex) {
             return null;
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe map from primitive {@code int} keys to values.
+ * <p>
+ * The keys are spread over a fixed number of segments, each locked on its
+ * own, so threads working on different keys seldom wait for each other. Every
+ * segment is an open addressing table of plain arrays; no key is boxed and no
+ * entry object is created. Null values are not allowed.</p>
+ *
+ * @param <V> type of the values
+ */
+public class ConcurrentIntMap<V> {
+
+    public static final int SEGMENT_COUNT = 16;
+    private static final int SEGMENT_SHIFT = 28;
+
+    private final Segment[] mSegments;
+    private final AtomicInteger mSize;
+
+    public ConcurrentIntMap() {
+        mSegments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; ++i) {
+            mSegments[i] = new Segment();
+        }
+        mSize = new AtomicInteger();
+    }
+
+    /**
+     * Gets the value of a key.
+     *
+     * @param key the key
+     * @return {@code null} if the key is not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int hash = hash(key);
+        return (V) segment(hash).get(key, hash);
+    }
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param key the key
+     * @param value the value; must not be null.
+     * @return the previous value, or {@code null} if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null value");
+        }
+        int hash = hash(key);
+        Object old = segment(hash).put(key, hash, value);
+        if (old == null) {
+            mSize.incrementAndGet();
+        }
+        return (V) old;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key the key
+     * @return the removed value, or {@code null} if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int hash = hash(key);
+        Object old = segment(hash).remove(key, hash);
+        if (old != null) {
+            mSize.decrementAndGet();
+        }
+        return (V) old;
+    }
+
+    /**
+     * Gets the number of keys in the map.
+     *
+     * @return
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Gets a copy of the values. It is consistent within each segment.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        ArrayList<V> values = new ArrayList<>(size());
+        for (Segment segment : mSegments) {
+            segment.copyValues((List<Object>) values);
+        }
+        return values;
+    }
+
+    // mix the bits, so that keys of the same subnet spread well
+    private static int hash(int key) {
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private Segment segment(int hash) {
+        return mSegments[hash >>> SEGMENT_SHIFT];
+    }
+
+    // an open addressing table with linear probing. an empty slot has a
+    // null value.
+    private static class Segment {
+
+        private static final int INITIAL_CAPACITY = 8;
+
+        private int[] mKeys = new int[INITIAL_CAPACITY];
+        private Object[] mValues = new Object[INITIAL_CAPACITY];
+        private int mCount;
+
+        synchronized Object get(int key, int hash) {
+            int mask = mKeys.length - 1;
+            for (int i = hash & mask; mValues[i] != null; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    return mValues[i];
+                }
+            }
+            return null;
+        }
+
+        synchronized Object put(int key, int hash, Object value) {
+            int mask = mKeys.length - 1;
+            int i = hash & mask;
+            for (; mValues[i] != null; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    Object old = mValues[i];
+                    mValues[i] = value;
+                    return old;
+                }
+            }
+            mKeys[i] = key;
+            mValues[i] = value;
+            // keep the table at most half full
+            if (++mCount * 2 > mKeys.length) {
+                resize();
+            }
+            return null;
+        }
+
+        synchronized Object remove(int key, int hash) {
+            int mask = mKeys.length - 1;
+            int i = hash & mask;
+            for (; mValues[i] != null; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    break;
+                }
+            }
+            Object old = mValues[i];
+            if (old == null) {
+                return null;
+            }
+            // move back the entries after it, so no probe chain is broken
+            int gap = i;
+            for (int j = (i + 1) & mask; mValues[j] != null; j = (j + 1) & mask) {
+                int home = hash(mKeys[j]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    mKeys[gap] = mKeys[j];
+                    mValues[gap] = mValues[j];
+                    gap = j;
+                }
+            }
+            mValues[gap] = null;
+            mCount--;
+            return old;
+        }
+
+        synchronized void copyValues(List<Object> values) {
+            for (Object value : mValues) {
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+        }
+
+        private void resize() {
+            int[] keys = mKeys;
+            Object[] values = mValues;
+            mKeys = new int[keys.length * 2];
+            mValues = new Object[keys.length * 2];
+            int mask = mKeys.length - 1;
+            for (int k = 0; k < keys.length; ++k) {
+                if (values[k] != null) {
+                    int i = hash(keys[k]) & mask;
+                    while (mValues[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    mKeys[i] = keys[k];
+                    mValues[i] = values[k];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A bounded queue for one producer thread and one consumer thread.
+ * <p>
+ * The items live in a fixed array indexed by two counters, so adding and
+ * taking an item creates no object and takes no lock. What happens when the
+ * queue is full is decided by its {@link DropPolicy}. A waiting consumer
+ * spins for a short while before it parks, and the producer wakes it only if
+ * it has parked.</p>
+ * <p>
+ * The head is moved with compare-and-set, since the producer also moves it
+ * when dropping items. For the same reason {@link #clear()} is safe from any
+ * thread.</p>
+ * <p>
+ * Every item dropped, or refused, is handed to the drop handler given, so
+ * that the items holding resources can be freed.</p>
+ *
+ * @param <E> type of the items
+ */
+public class RingBuffer<E> {
+
+    /**
+     * What to do with a new item when the queue is full.
+     */
+    public enum DropPolicy {
+
+        /**
+         * Drop the oldest item waiting, to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Refuse the new item.
+         */
+        DROP_NEWEST,
+        /**
+         * Keep only the newest item: every item waiting is dropped when a new
+         * one is added, whether the queue is full or not.
+         */
+        COALESCE_LATEST
+    }
+
+    // times to check again before parking
+    static final int SPIN_TRIES = 100;
+
+    private final AtomicReferenceArray<E> mItems;
+    private final int mMask;
+    private final int mCapacity;
+    private final DropPolicy mPolicy;
+    // next index to take
+    private final AtomicLong mHead;
+    // next index to add
+    private final AtomicLong mTail;
+    private volatile Thread mWaiter;
+    private final AtomicLong mDropped;
+    private final Consumer<? super E> mOnDrop;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param capacity most items that can wait
+     * @param policy what to do when full
+     */
+    public RingBuffer(int capacity, DropPolicy policy) {
+        this(capacity, policy, null);
+    }
+
+    /**
+     * Creates a new queue.
+     *
+     * @param capacity most items that can wait
+     * @param policy what to do when full
+     * @param onDrop called with every item dropped or refused; may be
+     * {@code null}.
+     */
+    public RingBuffer(int capacity, DropPolicy policy, Consumer<? super E> onDrop) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mItems = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+        mCapacity = capacity;
+        mPolicy = policy;
+        mHead = new AtomicLong();
+        mTail = new AtomicLong();
+        mDropped = new AtomicLong();
+        mOnDrop = onDrop;
+    }
+
+    /**
+     * Adds an item. Only the producer thread may call it.
+     *
+     * @param item the item; must not be null.
+     * @return {@code false} if the item was refused. It has been passed to
+     * the drop handler.
+     */
+    public boolean offer(E item) {
+        if (item == null) {
+            throw new NullPointerException("Null item");
+        }
+        long tail = mTail.get();
+        if (mPolicy == DropPolicy.COALESCE_LATEST) {
+            dropUntil(tail, 0);
+        } else if (tail - mHead.get() >= mCapacity) {
+            if (mPolicy == DropPolicy.DROP_NEWEST) {
+                mDropped.incrementAndGet();
+                dropped(item);
+                return false;
+            }
+            dropUntil(tail, mCapacity - 1);
+        }
+        mItems.lazySet((int) tail & mMask, item);
+        mTail.set(tail + 1);
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    // drops the oldest items until at most the given number are waiting.
+    // one at a time like poll(), so that an item is read before its slot can
+    // be reused by the producer.
+    private void dropUntil(long tail, int keep) {
+        while (true) {
+            long head = mHead.get();
+            if (tail - head <= keep) {
+                return;
+            }
+            E item = mItems.get((int) head & mMask);
+            if (mHead.compareAndSet(head, head + 1)) {
+                mDropped.incrementAndGet();
+                dropped(item);
+            }
+        }
+    }
+
+    private void dropped(E item) {
+        if (mOnDrop != null) {
+            mOnDrop.accept(item);
+        }
+    }
+
+    /**
+     * Takes the oldest item, without waiting.
+     *
+     * @return {@code null} if the queue is empty.
+     */
+    public E poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head == mTail.get()) {
+                return null;
+            }
+            E item = mItems.get((int) head & mMask);
+            // fails if the producer has dropped the item meanwhile
+            if (mHead.compareAndSet(head, head + 1)) {
+                return item;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest item, waiting for one if the queue is empty. Only the
+     * consumer thread may call it.
+     *
+     * @param timeout longest time to wait
+     * @param unit unit of the timeout
+     * @return {@code null} if no item came in time.
+     * @throws InterruptedException if the thread was interrupted.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E item = poll();
+        for (int i = 0; item == null && i < SPIN_TRIES; ++i) {
+            Thread.yield();
+            item = poll();
+        }
+        if (item != null) {
+            return item;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        mWaiter = Thread.currentThread();
+        try {
+            while ((item = poll()) == null) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, left);
+            }
+            return item;
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * Drops every item waiting.
+     */
+    public void clear() {
+        dropUntil(mTail.get(), 0);
+    }
+
+    public int size() {
+        return (int) Math.max(0, mTail.get() - mHead.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public DropPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Gets the number of items dropped so far by the policy or by
+     * {@link #clear()}.
+     *
+     * @return
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+}
@@ -154,12 +154,7 @@ public class Dialer {
         if (getStatus() != DialStatus.IDLE) {
             // stop remote
             if (mClient != null) {
-                new Thread(() -> {
-                    try {
-                        mClient.callRequest(ConnectFor.END_CALL, null);
-                    } catch (Exception ex) {
-                    }
-                }).start();
+                mClient.callRequestAsync(ConnectFor.END_CALL, null);
             }
             // stop local
             stop();
@@ -35,7 +35,7 @@ public class AudioPlayer extends StreamServer implements Runnable {
 
     private SourceDataLine mSourceLine;
     private Thread mPlayerThread;
-    private final LinkedList<byte[]> mData;
+    private final LinkedList<DataFrame> mData;
 
     public AudioPlayer(int port) {
         super(port);
@@ -84,9 +84,9 @@ public class AudioPlayer extends StreamServer implements Runnable {
             DataFrame frame = (DataFrame) data;
             // play the audio data   
             synchronized (mData) {
-                mData.add(frame.getBuffer());
+                mData.add(frame);
                 if (mData.size() > QUEUE_SIZE) {
-                    mData.poll();
+                    mData.poll().release();
                 }
                 mData.notify();
             }
@@ -105,10 +105,11 @@ public class AudioPlayer extends StreamServer implements Runnable {
                         Logs.error(getName(), "Wait interrupted. {0}", ex);
                     }
                 }
-                byte[] data = mData.poll();
+                DataFrame data = mData.poll();
                 if (data != null) {
                     // play the audio data 
-                    mSourceLine.write(data, 0, data.length);
+                    mSourceLine.write(data.getBuffer(), 0, data.getLength());
+                    data.release();
                 }
             }
         }
@@ -34,11 +34,16 @@ public class ImageFrame extends DataFrame {
         setBuffer(Commons.imageToBytes(image));
     }
 
+    @Override
+    public byte getType() {
+        return TYPE_IMAGE;
+    }
+
     public Image getImage() {
-        return Commons.bytesToImage(getBuffer());
+        return Commons.bytesToImage(getBuffer(), getLength());
     }
 
     public BufferedImage getBufferedImage() {
-        return Commons.bytesToBufferedImage(getBuffer());
+        return Commons.bytesToBufferedImage(getBuffer(), getLength());
     }
 }
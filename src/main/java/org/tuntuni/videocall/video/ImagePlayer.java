@@ -21,6 +21,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import javafx.application.Platform;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import org.tuntuni.connection.DataFrame;
 import org.tuntuni.connection.StreamServer;
 
 /**
@@ -49,11 +50,17 @@ public class ImagePlayer extends StreamServer {
         return "ImagePlayer";
     }
 
+    @Override
+    protected DataFrame createFrame(int type) {
+        return type == DataFrame.TYPE_IMAGE ? new ImageFrame() : null;
+    }
+
     @Override
     public void dataReceived(Object data) {
         if (data != null && data instanceof ImageFrame) {
             ImageFrame frame = (ImageFrame) data;
             mQueue.add(frame.getImage());
+            frame.release();
             if (mViewer != null && mQueue.size() > QUEUE_SIZE) {
                 Platform.runLater(() -> {
                     mViewer.setImage(mQueue.remove());
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class AnnounceSchedulerTest {
+
+    @Test
+    public void testBackoff() {
+        System.out.println("backoff");
+        ScheduledExecutorService schedular = Executors.newSingleThreadScheduledExecutor();
+        try {
+            AnnounceScheduler instance = new AnnounceScheduler(() -> {
+            }, schedular);
+            long total = 0;
+            long interval = 0;
+            for (int i = 0; i < 20; ++i) {
+                interval = instance.nextInterval();
+                total += interval;
+            }
+            System.out.println("++20 announces in " + total / 1000 + " s");
+            assertEquals(AnnounceScheduler.MAX_INTERVAL_MILLIS, interval);
+
+            // more peers, fewer announces
+            instance.setPeerCount(AnnounceScheduler.PEERS_PER_STEP * 4);
+            assertEquals(2 * AnnounceScheduler.MAX_INTERVAL_MILLIS, instance.getMaxInterval());
+            instance.setPeerCount(100_000);
+            assertEquals(AnnounceScheduler.MAX_STRETCHED_INTERVAL_MILLIS, instance.getMaxInterval());
+
+            for (int i = 0; i < 100; ++i) {
+                long delay = instance.jitter(1000);
+                assertTrue(delay >= 800 && delay <= 1200);
+            }
+        } finally {
+            schedular.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTrigger() throws InterruptedException {
+        System.out.println("trigger");
+        ScheduledExecutorService schedular = Executors.newSingleThreadScheduledExecutor();
+        Semaphore announced = new Semaphore(0);
+        try {
+            AnnounceScheduler instance = new AnnounceScheduler(
+                    () -> announced.release(), schedular);
+            instance.trigger();
+            assertTrue(announced.tryAcquire(AnnounceScheduler.TRIGGER_DELAY_MILLIS * 5,
+                    TimeUnit.MILLISECONDS));
+            instance.stop();
+        } finally {
+            schedular.shutdownNow();
+        }
+    }
+}
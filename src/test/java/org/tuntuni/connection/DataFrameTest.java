@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.tuntuni.util.BufferPool;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class DataFrameTest {
+
+    public DataFrameTest() {
+    }
+
+    @Test
+    public void testReleaseNotLeased() {
+        System.out.println("releaseNotLeased");
+        DataFrame frame = new DataFrame();
+        frame.setBuffer(new byte[]{1, 2, 3});
+        assertFalse(frame.isLeased());
+        frame.retain();
+        frame.release();
+        assertEquals(3, frame.getLength());
+        // the last release clears the data
+        frame.release();
+        assertNull(frame.getBuffer());
+        assertEquals(0, frame.getLength());
+        try {
+            frame.release();
+            fail("released twice");
+        } catch (IllegalStateException ex) {
+        }
+    }
+
+    @Test
+    public void testSetBufferGivesBack() {
+        System.out.println("setBufferGivesBack");
+        BufferPool pool = new BufferPool(false);
+        DataFrame frame = new DataFrame();
+        frame.lease(pool, 500);
+        frame.setBuffer(new byte[10]);
+        assertFalse(frame.isLeased());
+        assertEquals(1, pool.getFreeCount());
+        frame.release();
+        assertEquals(1, pool.getFreeCount());
+        assertNull(frame.getBuffer());
+    }
+}
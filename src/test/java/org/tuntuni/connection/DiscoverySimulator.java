@@ -0,0 +1,345 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.tuntuni.models.DiscoveryData;
+import org.tuntuni.util.ConcurrentIntMap;
+
+/**
+ * Simulates the discovery of many users on one subnet, in virtual time.
+ * <p>
+ * Every simulated user has a real {@link AnnounceScheduler}, encodes its
+ * announces with {@link DiscoveryData} and keeps the users it has found in a
+ * {@link ConcurrentIntMap}, just like {@link Subnet} and
+ * {@link SubnetServer}. Only the network is replaced: a broadcast reaches
+ * every other user after a fixed latency, and each copy may be lost. A new
+ * user is answered directly, and its profile is downloaded once per state.</p>
+ * <p>
+ * Run it with the number of users to simulate, e.g.
+ * {@code java org.tuntuni.connection.DiscoverySimulator 2000}.</p>
+ */
+public class DiscoverySimulator {
+
+    public static final int LATENCY_MILLIS = 2;
+    public static final int DOWNLOAD_MILLIS = 10;
+    public static final int STARTUP_WINDOW_MILLIS = 2_000;
+
+    private final int mCount;
+    private final double mLoss;
+    private final Random mRandom;
+    private final VirtualClock mClock;
+    private final Peer[] mPeers;
+    private long mPackets;
+    private long mDownloads;
+    private long mKnown;
+    private long mConverged = -1;
+
+    /**
+     * Creates a new simulation.
+     *
+     * @param count number of users
+     * @param loss chance of a packet copy to be lost, from 0 to 1
+     * @param seed seed of the random numbers
+     */
+    public DiscoverySimulator(int count, double loss, long seed) {
+        mCount = count;
+        mLoss = loss;
+        mRandom = new Random(seed);
+        mClock = new VirtualClock();
+        mPeers = new Peer[count];
+        for (int i = 0; i < count; ++i) {
+            mPeers[i] = new Peer(i);
+        }
+    }
+
+    /**
+     * Runs the simulation until all users know each other, then for a while
+     * longer to measure the steady traffic.
+     *
+     * @param steadyMillis virtual time to run after the convergence
+     * @param limitMillis virtual time to give up converging
+     * @return the measurements
+     */
+    public Result run(long steadyMillis, long limitMillis) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        long cpu = threads.getCurrentThreadCpuTime();
+        long wall = System.nanoTime();
+
+        for (Peer peer : mPeers) {
+            mClock.at(mRandom.nextInt(STARTUP_WINDOW_MILLIS), () -> peer.mAnnouncer.trigger());
+        }
+        mClock.runWhile(() -> mConverged < 0 && mClock.mNow < limitMillis);
+
+        Result result = new Result();
+        result.peers = mCount;
+        result.convergedMillis = mConverged;
+        result.downloadsPerPeer = (double) mDownloads / mCount;
+        result.packetsToConverge = mPackets;
+        if (mConverged >= 0) {
+            long packets = mPackets;
+            long end = mClock.mNow + steadyMillis;
+            mClock.runWhile(() -> mClock.mNow < end);
+            result.steadyPacketsPerSecond = (mPackets - packets) * 1000.0 / steadyMillis;
+        }
+        result.cpuMillis = (threads.getCurrentThreadCpuTime() - cpu) / 1e6;
+        result.wallMillis = (System.nanoTime() - wall) / 1e6;
+        // what is still used by the simulated users
+        System.gc();
+        result.heapBytes = Math.max(0, runtime.totalMemory() - runtime.freeMemory() - heap);
+        return result;
+    }
+
+    // send an announce of a user to all others
+    private void broadcast(Peer from) {
+        ByteBuffer packet = from.packet();
+        mPackets++;
+        mClock.at(mClock.mNow + LATENCY_MILLIS, () -> {
+            for (Peer to : mPeers) {
+                if (to != from && mRandom.nextDouble() >= mLoss) {
+                    to.receive(from.mKey, packet.duplicate());
+                }
+            }
+        });
+    }
+
+    // send an announce of a user to one other
+    private void unicast(Peer from, Peer to) {
+        ByteBuffer packet = from.packet();
+        mPackets++;
+        if (mRandom.nextDouble() >= mLoss) {
+            mClock.at(mClock.mNow + LATENCY_MILLIS, () -> to.receive(from.mKey, packet));
+        }
+    }
+
+    // a simulated user
+    private class Peer {
+
+        private final int mKey;
+        private final DiscoveryData mData;
+        private final AnnounceScheduler mAnnouncer;
+        // the users found, with the state of their downloaded profile
+        private final ConcurrentIntMap<Found> mFound;
+
+        Peer(int index) {
+            // addresses of a 10.0.0.0/8 network
+            mKey = 0x0A000000 + index + 1;
+            mData = new DiscoveryData(SubnetServer.PORTS[0]);
+            mData.setState(mRandom.nextInt());
+            mAnnouncer = new AnnounceScheduler(() -> broadcast(this), mClock);
+            mFound = new ConcurrentIntMap<>();
+        }
+
+        ByteBuffer packet() {
+            ByteBuffer buffer = ByteBuffer.allocate(DiscoveryData.SIZE);
+            mData.write(buffer);
+            buffer.flip();
+            return buffer;
+        }
+
+        // same as SubnetServer.addUser
+        void receive(int from, ByteBuffer packet) {
+            DiscoveryData dd = new DiscoveryData();
+            if (!dd.read(packet)) {
+                return;
+            }
+            Found found = mFound.get(from);
+            if (found == null) {
+                found = new Found();
+                mFound.put(from, found);
+                mAnnouncer.setPeerCount(mFound.size());
+                reply(from);
+            }
+            if ((!found.mHasProfile || found.mState != dd.getState()) && !found.mDownloading) {
+                download(found, dd.getState());
+            }
+        }
+
+        // same as Subnet.reply
+        void reply(int to) {
+            Peer peer = mPeers[to - 0x0A000001];
+            long delay = mRandom.nextInt(Subnet.REPLY_JITTER_MILLIS);
+            mClock.at(mClock.mNow + delay, () -> {
+                Found found = mFound.get(to);
+                if (found.mReplied == 0
+                        || mClock.mNow - found.mReplied >= Subnet.REPLY_SUPPRESS_MILLIS) {
+                    found.mReplied = mClock.mNow;
+                    unicast(this, peer);
+                }
+            });
+        }
+
+        void download(Found found, int state) {
+            found.mDownloading = true;
+            mDownloads++;
+            mClock.at(mClock.mNow + DOWNLOAD_MILLIS, () -> {
+                found.mDownloading = false;
+                if (!found.mHasProfile) {
+                    found.mHasProfile = true;
+                    mKnown++;
+                    if (mKnown == (long) mCount * (mCount - 1)) {
+                        mConverged = mClock.mNow;
+                    }
+                }
+                found.mState = state;
+            });
+        }
+    }
+
+    // what a user knows about another
+    private static class Found {
+
+        private int mState;
+        private boolean mHasProfile;
+        private boolean mDownloading;
+        private long mReplied;
+    }
+
+    /**
+     * The measurements of a simulation.
+     */
+    public static class Result {
+
+        public int peers;
+        // virtual time until every user knew every other, or -1
+        public long convergedMillis;
+        public long packetsToConverge;
+        public double downloadsPerPeer;
+        public double steadyPacketsPerSecond;
+        public double cpuMillis;
+        public double wallMillis;
+        public long heapBytes;
+
+        @Override
+        public String toString() {
+            return String.format("peers=%d converged=%d ms packets=%d downloads/peer=%.1f"
+                    + " steady=%.2f packets/s cpu=%.0f ms wall=%.0f ms heap=%d KB",
+                    peers, convergedMillis, packetsToConverge, downloadsPerPeer,
+                    steadyPacketsPerSecond, cpuMillis, wallMillis, heapBytes / 1024);
+        }
+    }
+
+    // an executor that only keeps the tasks, run in virtual time by the
+    // simulation. no thread is ever started.
+    private static class VirtualClock extends ScheduledThreadPoolExecutor {
+
+        private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+        private long mNow;
+        private long mSequence;
+
+        VirtualClock() {
+            super(1);
+        }
+
+        void at(long time, Runnable task) {
+            mEvents.add(new Event(time, mSequence++, task));
+        }
+
+        void runWhile(BooleanSupplier condition) {
+            while (condition.getAsBoolean() && !mEvents.isEmpty()) {
+                Event event = mEvents.poll();
+                if (event.mCancelled) {
+                    continue;
+                }
+                mNow = event.mTime;
+                event.mDone = true;
+                event.mTask.run();
+            }
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+            Event event = new Event(mNow + unit.toMillis(delay), mSequence++, task);
+            mEvents.add(event);
+            return event;
+        }
+
+        private class Event implements ScheduledFuture<Object> {
+
+            private final long mTime;
+            private final long mOrder;
+            private final Runnable mTask;
+            private boolean mCancelled;
+            private boolean mDone;
+
+            Event(long time, long order, Runnable task) {
+                mTime = time;
+                mOrder = order;
+                mTask = task;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(mTime - mNow, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                Event event = (Event) other;
+                int result = Long.compare(mTime, event.mTime);
+                return result != 0 ? result : Long.compare(mOrder, event.mOrder);
+            }
+
+            @Override
+            public boolean cancel(boolean interrupt) {
+                if (mDone) {
+                    return false;
+                }
+                mCancelled = true;
+                return true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return mCancelled;
+            }
+
+            @Override
+            public boolean isDone() {
+                return mDone || mCancelled;
+            }
+
+            @Override
+            public Object get() {
+                return null;
+            }
+
+            @Override
+            public Object get(long timeout, TimeUnit unit) {
+                return null;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        double loss = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+        Result result = new DiscoverySimulator(count, loss, 42).run(600_000, 3_600_000);
+        System.out.println(result);
+    }
+}
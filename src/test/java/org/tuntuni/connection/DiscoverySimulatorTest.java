@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Regression checks of the discovery at scale, run in virtual time.
+ *
+ * @author Sudipto Chandra
+ */
+public class DiscoverySimulatorTest {
+
+    public DiscoverySimulatorTest() {
+    }
+
+    @Test
+    public void testConvergence() {
+        System.out.println("convergence");
+        int count = 200;
+        DiscoverySimulator.Result result
+                = new DiscoverySimulator(count, 0.0, 7).run(600_000, 60_000);
+        System.out.println("++" + result);
+        // every user is found in the first round of announces
+        assertTrue(result.convergedMillis >= 0);
+        assertTrue(result.convergedMillis < DiscoverySimulator.STARTUP_WINDOW_MILLIS
+                + AnnounceScheduler.MIN_INTERVAL_MILLIS + Subnet.REPLY_JITTER_MILLIS);
+        // and its profile is downloaded once
+        assertEquals(count - 1, result.downloadsPerPeer, 0.001);
+        // the steady traffic grows slower than the number of users
+        assertTrue(result.steadyPacketsPerSecond < count * 1000.0
+                / AnnounceScheduler.MAX_INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void testPacketLoss() {
+        System.out.println("packetLoss");
+        int count = 100;
+        DiscoverySimulator.Result result
+                = new DiscoverySimulator(count, 0.2, 11).run(60_000, 600_000);
+        System.out.println("++" + result);
+        assertTrue(result.convergedMillis >= 0);
+        assertEquals(count - 1, result.downloadsPerPeer, 0.001);
+    }
+}
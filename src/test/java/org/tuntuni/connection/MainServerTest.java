@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import org.tuntuni.Core;
+import org.tuntuni.models.UserProfile;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class MainServerTest {
+
+    public MainServerTest() {
+    }
+
+    @Test
+    public void testProfileHash() {
+        System.out.println("profileHash");
+        UserProfile user = Core.instance().user();
+        MainServer server = new MainServer();
+        // known before anyone has downloaded the profile
+        long version = user.getState();
+        assertEquals(user.getData().contentHash(), server.getProfileHash(version));
+        assertEquals(0, server.getProfileHash(version - 1));
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.tuntuni.util.BufferPool;
+import org.tuntuni.util.RingBuffer.DropPolicy;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class MediaCodecTest {
+
+    public MediaCodecTest() {
+    }
+
+    private static DataFrame frame(int sequence, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) (sequence + i);
+        }
+        DataFrame frame = new DataFrame(data, size);
+        frame.setSequence(sequence);
+        frame.setTimestamp(1_466_000_000_000L + sequence);
+        return frame;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        System.out.println("roundTrip");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < 10; ++i) {
+            MediaCodec.write(out, frame(i, i * 100));
+        }
+        assertEquals(10 * (4 + MediaCodec.HEADER_SIZE) + 4500, bytes.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < 10; ++i) {
+            DataFrame frame = MediaCodec.read(in, (type) -> new DataFrame());
+            DataFrame sent = frame(i, i * 100);
+            assertEquals(sent.getSequence(), frame.getSequence());
+            assertEquals(sent.getTimestamp(), frame.getTimestamp());
+            assertEquals(sent.getLength(), frame.getLength());
+            assertArrayEquals(Arrays.copyOf(sent.getBuffer(), sent.getLength()),
+                    Arrays.copyOf(frame.getBuffer(), frame.getLength()));
+        }
+    }
+
+    @Test
+    public void testUnknownType() throws IOException {
+        System.out.println("unknownType");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        MediaCodec.write(out, frame(1, 50));
+        MediaCodec.write(out, frame(2, 60));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertNull(MediaCodec.read(in, (type) -> null));
+        assertEquals(2, MediaCodec.read(in, (type) -> new DataFrame()).getSequence());
+    }
+
+    @Test
+    public void testInvalidLength() {
+        System.out.println("invalidLength");
+        byte[] bytes = {0x7F, 0, 0, 0, 0, 0, 0, 0};
+        try {
+            MediaCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)),
+                    (type) -> new DataFrame());
+            fail("length was accepted");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("Invalid frame length"));
+        }
+    }
+
+    @Test
+    public void testLease() throws IOException {
+        System.out.println("lease");
+        BufferPool pool = new BufferPool(false);
+        DataFrame frame = new DataFrame();
+        frame.lease(pool, 700);
+        assertTrue(frame.isLeased());
+        assertEquals(700, frame.getLength());
+        frame.retain();
+        frame.release();
+        assertEquals(0, pool.getFreeCount());
+        frame.release();
+        assertEquals(1, pool.getFreeCount());
+        assertNull(frame.getBuffer());
+        try {
+            frame.release();
+            fail("released twice");
+        } catch (IllegalStateException ex) {
+        }
+    }
+
+    @Test
+    public void testSteadyState() throws IOException {
+        System.out.println("steadyState");
+        BufferPool pool = BufferPool.instance();
+        byte[] chunk = new byte[4410];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long allocated = 0;
+        for (int i = 0; i < 1000; ++i) {
+            if (i == 10) {
+                allocated = pool.getAllocatedBytes();
+            }
+            // what the microphone, the sender and the player do
+            DataFrame sent = new DataFrame(chunk, chunk.length);
+            bytes.reset();
+            MediaCodec.write(out, sent);
+            sent.release();
+            DataFrame frame = MediaCodec.read(new DataInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())), (type) -> new DataFrame());
+            assertEquals(chunk.length, frame.getLength());
+            frame.release();
+        }
+        assertEquals(allocated, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void testQueueRelease() {
+        System.out.println("queueRelease");
+        for (DropPolicy policy : DropPolicy.values()) {
+            BufferPool pool = new BufferPool(false);
+            StreamClient client = new StreamClient(4, MediaTransport.TCP, policy) {
+                @Override
+                public String getName() {
+                    return "TestClient";
+                }
+            };
+            try {
+                DataFrame[] frames = new DataFrame[10];
+                for (int i = 0; i < frames.length; ++i) {
+                    frames[i] = new DataFrame();
+                    frames[i].lease(pool, 1000);
+                }
+                // never connected, so every frame stays in the queue
+                for (DataFrame frame : frames) {
+                    client.send(frame);
+                }
+                int kept = (policy == DropPolicy.COALESCE_LATEST) ? 1 : 4;
+                assertEquals(10 - kept, client.getDropped());
+                assertEquals(10 - kept, pool.getFreeCount());
+                client.setMaxQueueSize(8);
+                assertEquals(10, pool.getFreeCount());
+
+                DataFrame frame = new DataFrame();
+                frame.lease(pool, 1000);
+                client.send(frame);
+                assertEquals(9, pool.getFreeCount());
+            } finally {
+                client.close();
+            }
+            assertEquals(10, pool.getFreeCount());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testStream() throws Exception {
+        System.out.println("stream");
+        int count = 2000;
+        ArrayList<DataFrame> received = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(count);
+        StreamServer server = new StreamServer(0) {
+            @Override
+            public String getName() {
+                return "TestServer";
+            }
+
+            @Override
+            public void dataReceived(Object data) {
+                received.add((DataFrame) data);
+                done.countDown();
+            }
+        };
+        StreamClient client = new StreamClient(count) {
+            @Override
+            public String getName() {
+                return "TestClient";
+            }
+        };
+        server.open();
+        try {
+            client.connect(InetAddress.getLoopbackAddress(), server.getPort());
+            byte[] data = new byte[1000];
+            for (int i = 0; i < count; ++i) {
+                data[0] = (byte) i;
+                client.send(data, data.length);
+            }
+            assertTrue(done.await(15, TimeUnit.SECONDS));
+            for (int i = 0; i < count; ++i) {
+                assertEquals(i, received.get(i).getSequence());
+                assertEquals((byte) i, received.get(i).getBuffer()[0]);
+                assertEquals(1000, received.get(i).getLength());
+            }
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+}
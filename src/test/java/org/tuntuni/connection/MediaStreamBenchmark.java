@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU time a media stream uses to pass frames over the
+ * loopback, with each {@link MediaTransport} that keeps every frame.
+ * <p>
+ * Frames are sent as fast as the receiver takes them, and the CPU time of
+ * both stream threads is read from {@link StreamClient#getCpuTime()} and
+ * {@link StreamServer#getCpuTime()}. Each transport is run twice, and the
+ * first is taken as warm up.</p>
+ * <p>
+ * Run it with the number of frames and their size, e.g.
+ * {@code java org.tuntuni.connection.MediaStreamBenchmark 20000 20000}.</p>
+ */
+public class MediaStreamBenchmark {
+
+    public static final int QUEUE_SIZE = 64;
+
+    /**
+     * The measurements of a transport.
+     */
+    public static class Result {
+
+        public MediaTransport transport;
+        public long received;
+        public double senderCpuMillis;
+        public double receiverCpuMillis;
+        public double wallMillis;
+
+        @Override
+        public String toString() {
+            return String.format("%-4s received=%d sender cpu=%.0f ms receiver cpu=%.0f ms"
+                    + " wall=%.0f ms", transport, received, senderCpuMillis,
+                    receiverCpuMillis, wallMillis);
+        }
+    }
+
+    /**
+     * Runs a transport.
+     *
+     * @param transport the transport
+     * @param frames number of frames
+     * @param size bytes in a frame
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static Result run(MediaTransport transport, int frames, int size)
+            throws IOException, InterruptedException {
+        CountDownLatch done = new CountDownLatch(frames);
+        StreamServer server = new StreamServer(0, transport) {
+            @Override
+            public String getName() {
+                return "BenchServer";
+            }
+
+            @Override
+            public void dataReceived(Object data) {
+                ((DataFrame) data).release();
+                done.countDown();
+            }
+        };
+        StreamClient client = new StreamClient(QUEUE_SIZE, transport) {
+            @Override
+            public String getName() {
+                return "BenchClient";
+            }
+        };
+        Result result = new Result();
+        result.transport = transport;
+        server.open();
+        try {
+            long start = System.nanoTime();
+            client.connect(InetAddress.getLoopbackAddress(), server.getPort());
+            byte[] data = new byte[size];
+            for (int i = 0; i < frames; ++i) {
+                // keep fewer frames in flight than the queue holds
+                while (i - (frames - done.getCount()) >= QUEUE_SIZE / 2) {
+                    Thread.sleep(0, 100_000);
+                }
+                data[0] = (byte) i;
+                client.send(data, size);
+            }
+            done.await(60, TimeUnit.SECONDS);
+            result.wallMillis = (System.nanoTime() - start) / 1e6;
+            result.received = frames - done.getCount();
+            result.senderCpuMillis = client.getCpuTime() / 1e6;
+            result.receiverCpuMillis = server.getCpuTime() / 1e6;
+        } finally {
+            client.close();
+            server.close();
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        for (MediaTransport transport : new MediaTransport[]{MediaTransport.TCP, MediaTransport.NIO}) {
+            run(transport, frames, size);
+            System.out.println(run(transport, frames, size));
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class MediaTransportTest {
+
+    public MediaTransportTest() {
+    }
+
+    private static DataFrame frame(int sequence, long timestamp, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) (sequence * 31 + i);
+        }
+        DataFrame frame = new DataFrame(data, size);
+        frame.setSequence(sequence);
+        frame.setTimestamp(timestamp);
+        return frame;
+    }
+
+    // sends the fragments of a frame, except the one skipped
+    private static void send(DatagramSocket socket, DataFrame frame, int skip)
+            throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(UdpMediaSender.MAX_DATAGRAM_SIZE);
+        int count = UdpMediaSender.fragmentCount(frame.getLength());
+        for (int i = 0; i < count; ++i) {
+            if (i != skip) {
+                int length = UdpMediaSender.fragment(frame, i, count, packet);
+                socket.send(new DatagramPacket(packet.array(), length));
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFragments() throws IOException {
+        System.out.println("fragments");
+        UdpMediaReceiver receiver = new UdpMediaReceiver();
+        receiver.open(0);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    receiver.getPort()));
+            // a frame missing a fragment is never returned
+            send(socket, frame(1, 1000, 5000), 2);
+            DataFrame sent = frame(2, 1040, 50_000);
+            send(socket, sent, -1);
+            send(socket, frame(3, 1080, 0), -1);
+
+            DataFrame frame = receiver.receive((type) -> new DataFrame());
+            assertEquals(2, frame.getSequence());
+            assertEquals(1040, frame.getTimestamp());
+            assertEquals(sent.getLength(), frame.getLength());
+            assertArrayEquals(Arrays.copyOf(sent.getBuffer(), sent.getLength()),
+                    Arrays.copyOf(frame.getBuffer(), frame.getLength()));
+            frame = receiver.receive((type) -> new DataFrame());
+            assertEquals(3, frame.getSequence());
+            assertEquals(0, frame.getLength());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testFromProperties() {
+        System.out.println("fromProperties");
+        Locale locale = Locale.getDefault();
+        String value = System.getProperty(MediaTransport.PROPERTY);
+        try {
+            // the lower case i becomes a dotted capital I in Turkish
+            Locale.setDefault(new Locale("tr", "TR"));
+            System.setProperty(MediaTransport.PROPERTY, "nio");
+            assertEquals(MediaTransport.NIO, MediaTransport.fromProperties());
+            System.setProperty(MediaTransport.PROPERTY, " udp ");
+            assertEquals(MediaTransport.UDP, MediaTransport.fromProperties());
+            System.setProperty(MediaTransport.PROPERTY, "quic");
+            assertEquals(MediaTransport.TCP, MediaTransport.fromProperties());
+        } finally {
+            Locale.setDefault(locale);
+            if (value == null) {
+                System.clearProperty(MediaTransport.PROPERTY);
+            } else {
+                System.setProperty(MediaTransport.PROPERTY, value);
+            }
+        }
+    }
+
+    @Test
+    public void testStats() {
+        System.out.println("stats");
+        MediaStats stats = new MediaStats();
+        assertTrue(stats.record(frame(0, 0, 1), 50));
+        assertTrue(stats.record(frame(1, 20, 1), 70));
+        // two frames lost, then one late
+        assertTrue(stats.record(frame(4, 80, 1), 146));
+        assertFalse(stats.record(frame(3, 60, 1), 150));
+        assertFalse(stats.record(frame(4, 80, 1), 150));
+
+        assertEquals(3, stats.getReceived());
+        assertEquals(2, stats.getLost());
+        assertEquals(2, stats.getLate());
+        assertEquals(0.4, stats.getLossRatio(), 1e-9);
+        // transit 50, 50, 66
+        assertEquals(1.0, stats.getJitter(), 1e-9);
+    }
+
+    @Test(timeout = 20000)
+    public void testNioStream() throws Exception {
+        System.out.println("nioStream");
+        int count = 300;
+        List<DataFrame> received = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(count);
+        StreamServer server = new StreamServer(0, MediaTransport.NIO) {
+            @Override
+            public String getName() {
+                return "TestServer";
+            }
+
+            @Override
+            public void dataReceived(Object data) {
+                received.add((DataFrame) data);
+                done.countDown();
+            }
+        };
+        StreamClient client = new StreamClient(count, MediaTransport.NIO) {
+            @Override
+            public String getName() {
+                return "TestClient";
+            }
+        };
+        server.open();
+        try {
+            client.connect(InetAddress.getLoopbackAddress(), server.getPort());
+            for (int i = 0; i < count; ++i) {
+                // empty, small and larger than the receive buffer
+                DataFrame sent = frame(i, i, (i % 3) * (i % 2 == 0 ? 400_000 : 700));
+                client.send(sent);
+            }
+            assertTrue(done.await(15, TimeUnit.SECONDS));
+            for (int i = 0; i < count; ++i) {
+                DataFrame frame = received.get(i);
+                DataFrame sent = frame(i, i, (i % 3) * (i % 2 == 0 ? 400_000 : 700));
+                assertEquals(i, frame.getSequence());
+                assertEquals(sent.getLength(), frame.getLength());
+                assertArrayEquals(Arrays.copyOf(sent.getBuffer(), sent.getLength()),
+                        Arrays.copyOf(frame.getBuffer(), frame.getLength()));
+            }
+            assertEquals(0, server.getStats().getLost());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testCpuTime() throws Exception {
+        System.out.println("cpuTime");
+        for (MediaTransport transport : new MediaTransport[]{MediaTransport.TCP,
+            MediaTransport.NIO}) {
+            MediaStreamBenchmark.Result result = MediaStreamBenchmark.run(transport, 500, 20_000);
+            System.out.println("++" + result);
+            assertEquals(500, result.received);
+            assertTrue(result.receiverCpuMillis != 0);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testReconnect() throws Exception {
+        System.out.println("reconnect");
+        for (MediaTransport transport : new MediaTransport[]{MediaTransport.TCP,
+            MediaTransport.NIO}) {
+            MediaReceiver receiver = transport.newReceiver();
+            receiver.open(0);
+            InetSocketAddress address = new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), receiver.getPort());
+            try {
+                // a sender that is out of step is dropped
+                try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.writeInt(-1);
+                    out.write(new byte[MediaCodec.HEADER_SIZE]);
+                    out.flush();
+                    try {
+                        receiver.receive((type) -> new DataFrame());
+                        fail("length was accepted");
+                    } catch (IOException ex) {
+                        assertFalse(receiver.isConnected());
+                    }
+                }
+                // and so is one that has left
+                try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    MediaCodec.write(out, frame(1, 10, 100));
+                    out.flush();
+                    socket.shutdownOutput();
+                    assertEquals(1, receiver.receive((type) -> new DataFrame()).getSequence());
+                    try {
+                        receiver.receive((type) -> new DataFrame());
+                        fail("stream did not end");
+                    } catch (EOFException ex) {
+                        assertFalse(receiver.isConnected());
+                    }
+                }
+                // the next one is accepted
+                try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    MediaCodec.write(out, frame(2, 20, 100));
+                    out.flush();
+                    assertEquals(2, receiver.receive((type) -> new DataFrame()).getSequence());
+                    assertTrue(receiver.isConnected());
+                }
+            } finally {
+                receiver.close();
+            }
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testUdpStream() throws Exception {
+        System.out.println("udpStream");
+        int count = 50;
+        List<DataFrame> received = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(count);
+        StreamServer server = new StreamServer(0, MediaTransport.UDP) {
+            @Override
+            public String getName() {
+                return "TestServer";
+            }
+
+            @Override
+            public void dataReceived(Object data) {
+                received.add((DataFrame) data);
+                done.countDown();
+            }
+        };
+        StreamClient client = new StreamClient(count, MediaTransport.UDP) {
+            @Override
+            public String getName() {
+                return "TestClient";
+            }
+        };
+        server.open();
+        try {
+            client.connect(InetAddress.getLoopbackAddress(), server.getPort());
+            byte[] data = new byte[20_000];
+            for (int i = 0; i < count; ++i) {
+                data[0] = (byte) i;
+                client.send(data, data.length);
+                Thread.sleep(5);
+            }
+            // the loopback may still drop some under load
+            done.await(5, TimeUnit.SECONDS);
+            List<DataFrame> frames = new ArrayList<>(received);
+            assertTrue(frames.size() > count / 2);
+            int last = -1;
+            for (DataFrame frame : frames) {
+                assertTrue(frame.getSequence() > last);
+                assertEquals((byte) frame.getSequence(), frame.getBuffer()[0]);
+                assertEquals(20_000, frame.getLength());
+                last = frame.getSequence();
+            }
+            assertTrue(server.getStats().getReceived() >= frames.size());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+}
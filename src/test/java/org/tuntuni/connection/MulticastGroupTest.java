@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+import org.tuntuni.models.DiscoveryData;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class MulticastGroupTest {
+
+    static final int TEST_PORT = 45914;
+
+    public MulticastGroupTest() {
+    }
+
+    // an interface able to send to a group
+    private static NetworkInterface multicastInterface() throws Exception {
+        for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (ni.isUp() && ni.supportsMulticast() && !ni.isLoopback()
+                    && Collections.list(ni.getInetAddresses()).stream()
+                    .anyMatch((address) -> address instanceof Inet4Address)) {
+                return ni;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testTwoInstances() throws Exception {
+        System.out.println("twoInstances");
+        NetworkInterface ni = multicastInterface();
+        assumeTrue(ni != null);
+        MulticastGroup group = new MulticastGroup(
+                InetAddress.getByName(MulticastGroup.DEFAULT_GROUP), TEST_PORT, 1);
+
+        // two users on the same host share the port
+        try (DatagramChannel first = group.openReceiver();
+                DatagramChannel second = group.openReceiver();
+                MulticastSocket sender = group.openSender()) {
+            group.join(first, ni);
+            group.join(second, ni);
+            first.configureBlocking(false);
+            second.configureBlocking(false);
+
+            DiscoveryData data = new DiscoveryData(24914);
+            ByteBuffer buffer = ByteBuffer.allocate(DiscoveryData.SIZE);
+            data.write(buffer);
+            sender.setNetworkInterface(ni);
+            sender.send(new DatagramPacket(buffer.array(), buffer.position(),
+                    group.getGroup(), group.getPort()));
+
+            assertEquals(24914, receive(first).getPort());
+            assertEquals(24914, receive(second).getPort());
+        } catch (SocketTimeoutException ex) {
+            // multicast is not routed on this host
+            assumeTrue(false);
+        }
+    }
+
+    private static DiscoveryData receive(DatagramChannel channel) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(SubnetServer.MAX_PACKET_SIZE);
+        long deadline = System.currentTimeMillis() + 2_000;
+        while (channel.receive(buffer) == null) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new SocketTimeoutException();
+            }
+            Thread.sleep(10);
+        }
+        buffer.flip();
+        DiscoveryData data = new DiscoveryData();
+        assertTrue(data.read(buffer));
+        return data;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotMulticast() throws Exception {
+        System.out.println("notMulticast");
+        new MulticastGroup(InetAddress.getByName("192.168.1.255"), TEST_PORT, 1);
+    }
+}
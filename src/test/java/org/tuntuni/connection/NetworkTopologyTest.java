@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class NetworkTopologyTest {
+
+    public NetworkTopologyTest() {
+    }
+
+    private static NetworkTopology.Network network(String name, String address,
+            String broadcast) throws UnknownHostException {
+        return new NetworkTopology.Network(name, null,
+                (Inet4Address) InetAddress.getByName(address),
+                InetAddress.getByName(broadcast), (short) 24);
+    }
+
+    @Test
+    public void testUpdate() throws UnknownHostException {
+        System.out.println("update");
+        NetworkTopology topology = new NetworkTopology();
+        ArrayList<InetAddress> appeared = new ArrayList<>();
+        topology.addListener((old, now) -> appeared.addAll(now.newBroadcasts(old)));
+
+        NetworkTopology.Network wifi = network("wlan0", "192.168.1.5", "192.168.1.255");
+        NetworkTopology.Network wired = network("eth0", "10.0.0.7", "10.0.0.255");
+        assertTrue(topology.update(Arrays.asList(wifi)));
+        NetworkTopology.Snapshot first = topology.snapshot();
+        assertTrue(first.isLocal(InetAddress.getByName("192.168.1.5")));
+        assertFalse(first.isLocal(InetAddress.getByName("10.0.0.7")));
+
+        // the same networks in another order are no change
+        assertTrue(topology.update(Arrays.asList(wired, wifi)));
+        assertFalse(topology.update(Arrays.asList(wifi, wired)));
+        assertEquals(Arrays.asList(InetAddress.getByName("192.168.1.255"),
+                InetAddress.getByName("10.0.0.255")), appeared);
+
+        // an old snapshot stays as it was
+        assertTrue(topology.update(Collections.singletonList(wired)));
+        assertTrue(first.isLocal(InetAddress.getByName("192.168.1.5")));
+        assertFalse(topology.snapshot().isLocal(InetAddress.getByName("192.168.1.5")));
+        assertEquals(2, appeared.size());
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        System.out.println("refresh");
+        NetworkTopology topology = new NetworkTopology();
+        topology.refresh();
+        // nothing changes between two quick queries
+        assertFalse(topology.refresh());
+        System.out.println("++networks=" + topology.snapshot().getNetworks());
+    }
+}
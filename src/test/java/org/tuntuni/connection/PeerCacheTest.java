@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.tuntuni.models.DiscoveryData;
+import org.tuntuni.models.UserData;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class PeerCacheTest {
+
+    private File mFile;
+
+    public PeerCacheTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("peers", ".cache");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static Client client(String host, int port, String name, long lastSeen) {
+        Client client = new Client(new InetSocketAddress(host, port));
+        UserData data = new UserData(name, "Available", "About " + name, new byte[]{1, 2, 3});
+        data.setVersion(1_466_000_000_000L + port);
+        client.restore(data, port * 3, lastSeen);
+        return client;
+    }
+
+    @Test
+    public void testSaveLoad() {
+        System.out.println("saveLoad");
+        long now = System.currentTimeMillis();
+        Client first = client("192.168.1.5", 24914, "First", now - 60_000);
+        Client second = client("10.0.0.7", 42914, "Second", now - 5_000);
+        new PeerCache(mFile).save(Arrays.asList(first, second));
+
+        List<Client> loaded = new PeerCache(mFile).load(now);
+        assertEquals(2, loaded.size());
+        for (Client client : loaded) {
+            Client saved = client.equals(first) ? first : second;
+            assertEquals(saved.getSocketAddress(), client.getSocketAddress());
+            assertEquals(saved.getState(), client.getState());
+            assertEquals(saved.getLastSeen(), client.getLastSeen());
+            assertEquals(saved.getUserName(), client.getUserName());
+            assertEquals(saved.getUserData().getVersion(), client.getUserData().getVersion());
+            assertArrayEquals(saved.getUserData().getAvatarData(),
+                    client.getUserData().getAvatarData());
+            assertFalse(client.isConnected());
+        }
+
+        // the cached profile is known to be current
+        Client restored = loaded.get(0);
+        DiscoveryData dd = new DiscoveryData(restored.getPort());
+        dd.setProfileVersion(restored.getUserData().getVersion());
+        assertTrue(restored.isProfileCurrent(dd));
+    }
+
+    @Test
+    public void testRemembered() {
+        System.out.println("remembered");
+        long now = System.currentTimeMillis();
+        Client gone = client("192.168.1.5", 24914, "Gone", now - 60_000);
+        Client old = client("192.168.1.6", 24914, "Old", now - PeerCache.MAX_AGE_MILLIS - 1);
+        new PeerCache(mFile).save(Arrays.asList(gone, old));
+
+        // a user not in the list any more is kept until it is too old
+        PeerCache cache = new PeerCache(mFile);
+        assertEquals(1, cache.load(now).size());
+        cache.save(Collections.singletonList(client("10.0.0.7", 42914, "New", now)));
+        List<String> names = new ArrayList<>();
+        new PeerCache(mFile).load(now).forEach((c) -> names.add(c.getUserName()));
+        Collections.sort(names);
+        assertEquals(Arrays.asList("Gone", "New"), names);
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException {
+        System.out.println("invalidFile");
+        assertTrue(new PeerCache(mFile).load(0).isEmpty());
+        Files.write(mFile.toPath(), new byte[]{0x54, 0x4E, 0x50, 0x43, 1, 0, 0});
+        assertTrue(new PeerCache(mFile).load(0).isEmpty());
+    }
+}
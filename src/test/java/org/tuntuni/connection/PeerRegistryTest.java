@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class PeerRegistryTest {
+
+    private final List<List<Client>> mAdded = Collections.synchronizedList(new ArrayList<>());
+    private final List<List<Client>> mRemoved = Collections.synchronizedList(new ArrayList<>());
+
+    public PeerRegistryTest() {
+    }
+
+    private static Client client(int port) {
+        return new Client(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    private void listen(PeerRegistry registry) {
+        registry.addListener((added, removed) -> {
+            mAdded.add(new ArrayList<>(added));
+            mRemoved.add(new ArrayList<>(removed));
+        });
+    }
+
+    @Test
+    public void testBatchedChanges() {
+        System.out.println("batchedChanges");
+        PeerRegistry registry = new PeerRegistry();
+        listen(registry);
+        Client first = client(1), second = client(2), gone = client(3);
+        registry.put(1, first);
+        registry.put(2, second);
+        registry.put(3, gone);
+        registry.remove(3);
+        registry.flush();
+        // a single change, without the short lived user
+        assertEquals(1, mAdded.size());
+        assertEquals(Arrays.asList(first, second), mAdded.get(0));
+        assertTrue(mRemoved.get(0).isEmpty());
+
+        registry.remove(1);
+        registry.put(1, first);
+        registry.flush();
+        // nothing changed in the end
+        assertEquals(1, mAdded.size());
+
+        registry.remove(2);
+        registry.flush();
+        assertEquals(Collections.singletonList(second), mRemoved.get(1));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testLateListener() throws InterruptedException {
+        System.out.println("lateListener");
+        PeerRegistry registry = new PeerRegistry();
+        Client first = client(1), second = client(2);
+        registry.put(1, first);
+        registry.flush();
+        registry.put(2, second);
+        // gets the users of the last pulse, then the pending change
+        listen(registry);
+        assertEquals(Collections.singletonList(first), mAdded.get(0));
+        Thread.sleep(PeerRegistry.PULSE_MILLIS * 3);
+        assertEquals(2, mAdded.size());
+        assertEquals(Collections.singletonList(second), mAdded.get(1));
+    }
+}
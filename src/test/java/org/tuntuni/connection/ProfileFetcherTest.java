@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.tuntuni.models.UserData;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class ProfileFetcherTest {
+
+    private final ArrayList<Client> mStarted = new ArrayList<>();
+    private final ArrayList<CompletableFuture<UserData>> mRunning = new ArrayList<>();
+
+    public ProfileFetcherTest() {
+    }
+
+    // a fetcher whose downloads finish when the test says so
+    private ProfileFetcher fetcher(Client selected) {
+        return new ProfileFetcher(2, (client) -> client == selected
+                ? ProfileFetcher.PRIORITY_SELECTED
+                : client.isShown() ? ProfileFetcher.PRIORITY_SHOWN
+                : ProfileFetcher.PRIORITY_OTHER) {
+            @Override
+            CompletableFuture<UserData> fetch(Client client, int state) {
+                CompletableFuture<UserData> future = new CompletableFuture<>();
+                mStarted.add(client);
+                mRunning.add(future);
+                return future;
+            }
+        };
+    }
+
+    private static Client client(int port) {
+        return new Client(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    @Test
+    public void testPriority() {
+        System.out.println("priority");
+        Client first = client(1), second = client(2);
+        Client other = client(3), shown = client(4), selected = client(5);
+        shown.setShown(true);
+        ProfileFetcher fetcher = fetcher(selected);
+
+        fetcher.submit(first, 0);
+        fetcher.submit(second, 0);
+        fetcher.submit(other, 0);
+        fetcher.submit(shown, 0);
+        CompletableFuture<UserData> last = fetcher.submit(selected, 0);
+        assertEquals(2, mStarted.size());
+        assertEquals(3, fetcher.getWaitingCount());
+
+        mRunning.get(0).complete(null);
+        assertEquals(selected, mStarted.get(2));
+        mRunning.get(1).complete(null);
+        assertEquals(shown, mStarted.get(3));
+        mRunning.get(2).complete(null);
+        assertEquals(other, mStarted.get(4));
+        assertTrue(last.isDone());
+        assertEquals(0, fetcher.getWaitingCount());
+    }
+
+    @Test
+    public void testCancel() {
+        System.out.println("cancel");
+        ProfileFetcher fetcher = fetcher(null);
+        fetcher.submit(client(1), 0);
+        fetcher.submit(client(2), 0);
+        CompletableFuture<UserData> waiting = fetcher.submit(client(3), 0);
+        waiting.cancel(false);
+        mRunning.get(0).complete(null);
+        // the cancelled one is never started
+        assertEquals(2, mStarted.size());
+        assertEquals(0, fetcher.getWaitingCount());
+
+        CompletableFuture<UserData> running = fetcher.submit(client(4), 0);
+        running.cancel(false);
+        assertTrue(mRunning.get(2).isCancelled());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.tuntuni.Core;
+import org.tuntuni.models.ConnectFor;
+import org.tuntuni.models.UserData;
+import org.tuntuni.models.UserProfile;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class ProfilePublisherTest {
+
+    private MainServer mServer;
+    private Client mClient;
+    private String mStatus;
+    private String mAboutMe;
+    private final AtomicInteger mProfileCount = new AtomicInteger();
+    private final CountDownLatch mSubscribed = new CountDownLatch(1);
+
+    public ProfilePublisherTest() {
+    }
+
+    @Before
+    public void setUp() {
+        UserProfile user = Core.instance().user();
+        mStatus = user.getStatus();
+        mAboutMe = user.getAboutMe();
+        // the server sends its own profile to itself over the loopback
+        mServer = new MainServer() {
+            @Override
+            Object getResponse(ConnectFor status, Socket from, Object[] data) {
+                if (status == ConnectFor.PROFILE) {
+                    mProfileCount.incrementAndGet();
+                }
+                Object response = super.getResponse(status, from, data);
+                if (status == ConnectFor.SUBSCRIBE) {
+                    mSubscribed.countDown();
+                }
+                return response;
+            }
+
+            @Override
+            public Client getClient(Socket socket) {
+                return mClient;
+            }
+        };
+        mServer.start();
+        mClient = new Client(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                mServer.getPort()));
+    }
+
+    @After
+    public void tearDown() {
+        mClient.close();
+        mServer.stop();
+        UserProfile user = Core.instance().user();
+        user.setStatus(mStatus);
+        user.setAboutMe(mAboutMe);
+    }
+
+    // waits for the client to have the current profile of the user
+    private boolean awaitProfile(UserProfile user) throws InterruptedException {
+        for (int i = 0; i < 100; ++i) {
+            UserData data = mClient.getUserData();
+            if (data != null && data.getVersion() == user.getState()) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    @Test(timeout = 20000)
+    public void testPublish() throws Exception {
+        System.out.println("publish");
+        UserProfile user = Core.instance().user();
+        mClient.fetchProfile(1).get(5, TimeUnit.SECONDS);
+        assertTrue(mSubscribed.await(5, TimeUnit.SECONDS));
+
+        String status = "Busy " + System.nanoTime();
+        String aboutMe = "About " + System.nanoTime();
+        user.setStatus(status);
+        user.setAboutMe(aboutMe);
+        assertTrue(awaitProfile(user));
+
+        UserData data = mClient.getUserData();
+        assertEquals(status, data.getStatus());
+        assertEquals(aboutMe, data.getAboutMe());
+        assertEquals(user.getName(), data.getUserName());
+        assertEquals(user.getData().contentHash(), data.contentHash());
+        // the changes were pushed, not downloaded again
+        assertEquals(1, mProfileCount.get());
+    }
+
+    @Test(timeout = 20000)
+    public void testMissedUpdate() throws Exception {
+        System.out.println("missedUpdate");
+        UserProfile user = Core.instance().user();
+        mClient.fetchProfile(1).get(5, TimeUnit.SECONDS);
+        long version = mClient.getUserData().getVersion();
+
+        // an update made from a version never received
+        UserData changes = new UserData(user.getName(), "Wrong", "", null);
+        changes.setVersion(version + 2);
+        assertTrue(mClient.updateProfile(changes, version + 1));
+        for (int i = 0; i < 100 && mProfileCount.get() < 2; ++i) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, mProfileCount.get());
+        assertEquals(user.getStatus(), mClient.getUserData().getStatus());
+
+        // an older update is ignored
+        changes.setVersion(version);
+        assertTrue(mClient.updateProfile(changes, version - 1));
+        assertEquals(user.getStatus(), mClient.getUserData().getStatus());
+        assertEquals(version, mClient.getUserData().getVersion());
+    }
+}
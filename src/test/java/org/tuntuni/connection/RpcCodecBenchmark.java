@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import org.tuntuni.models.ConnectFor;
+import org.tuntuni.models.Message;
+import org.tuntuni.models.UserData;
+
+/**
+ * Compares the binary {@link RpcFrame} with the object stream requests used
+ * before, by the bytes written and the time to write and read a request and
+ * its response.
+ * <p>
+ * A MESSAGE request and a PROFILE request with its response are measured.
+ * Each is run once as warm up before it is timed.</p>
+ * <p>
+ * Run it with the number of rounds, e.g.
+ * {@code java org.tuntuni.connection.RpcCodecBenchmark 20000}.</p>
+ */
+public class RpcCodecBenchmark {
+
+    /**
+     * The measurements of a request.
+     */
+    public static class Result {
+
+        public ConnectFor type;
+        public int streamBytes;
+        public int frameBytes;
+        public double streamMicros;
+        public double frameMicros;
+
+        @Override
+        public String toString() {
+            return String.format("%-8s object stream=%d bytes %.1f us binary frame=%d bytes %.1f us",
+                    type, streamBytes, streamMicros, frameBytes, frameMicros);
+        }
+    }
+
+    /**
+     * A profile with an avatar of a usual size.
+     *
+     * @return
+     */
+    static UserData sampleUser() {
+        byte[] avatar = new byte[6 * 1024];
+        new Random(42).nextBytes(avatar);
+        UserData user = new UserData("Sudipto Chandra", "Available", "Hello world!", avatar);
+        user.setVersion(1_466_000_000_000L);
+        return user;
+    }
+
+    static Message sampleMessage() {
+        return new Message("How are you doing today?");
+    }
+
+    /**
+     * Measures a request both ways.
+     *
+     * @param type type of the request
+     * @param params parameters of the request
+     * @param response the response, or {@code null} if there is none
+     * @param rounds times to repeat
+     * @return the measurements
+     * @throws Exception
+     */
+    public static Result run(ConnectFor type, Object[] params, Object response, int rounds)
+            throws Exception {
+        // warm up
+        for (int i = 0; i < rounds; ++i) {
+            objectStream(type, params, response);
+            frame(type, params, response);
+        }
+        Result result = new Result();
+        result.type = type;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            result.streamBytes = objectStream(type, params, response);
+        }
+        result.streamMicros = (System.nanoTime() - start) / 1e3 / rounds;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            result.frameBytes = frame(type, params, response);
+        }
+        result.frameMicros = (System.nanoTime() - start) / 1e3 / rounds;
+        return result;
+    }
+
+    // write and read a request and response the old way
+    static int objectStream(ConnectFor type, Object[] params, Object result)
+            throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(request)) {
+            oos.writeByte(type.data());
+            oos.writeInt(params.length);
+            for (Object o : params) {
+                oos.writeObject(o);
+            }
+        }
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(response)) {
+            if (result != null) {
+                oos.writeObject(result);
+            }
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(request.toByteArray()))) {
+            ConnectFor.from(ois.readByte());
+            int length = ois.readInt();
+            for (int i = 0; i < length; ++i) {
+                ois.readObject();
+            }
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(response.toByteArray()))) {
+            if (result != null) {
+                ois.readObject();
+            }
+        }
+        return request.size() + response.size();
+    }
+
+    // write and read a request and response as frames
+    static int frame(ConnectFor type, Object[] params, Object result) {
+        RpcFrame request = RpcFrame.request(1, type, params);
+        RpcFrame response = RpcFrame.response(request, result);
+        int size = request.encode().remaining() + response.encode().remaining();
+        request.getParams();
+        response.getResult();
+        return size;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        System.out.println(run(ConnectFor.MESSAGE, new Object[]{sampleMessage()}, null, rounds));
+        System.out.println(run(ConnectFor.PROFILE, new Object[]{3}, sampleUser(), rounds));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.tuntuni.models.ConnectFor;
+import org.tuntuni.models.DiscoveryData;
+import org.tuntuni.models.Message;
+import org.tuntuni.models.UserData;
+
+/**
+ * Checks the binary frames, and that they are smaller than the old object
+ * stream requests.
+ */
+public class RpcCodecTest {
+
+    private final UserData mUser;
+    private final Message mMessage;
+
+    public RpcCodecTest() {
+        mUser = RpcCodecBenchmark.sampleUser();
+        mMessage = RpcCodecBenchmark.sampleMessage();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        System.out.println("roundTrip");
+        Object[] params = {42, 7L, "text", null, mMessage,
+            new Exception("failure"), new DiscoveryData(24914),
+            RpcStatus.NOT_MODIFIED};
+        Object[] read = RpcCodec.decodeParams(RpcCodec.encodeParams(params));
+        assertEquals(params.length, read.length);
+        assertEquals(42, read[0]);
+        assertEquals(7L, read[1]);
+        assertEquals("text", read[2]);
+        assertNull(read[3]);
+        assertEquals(mMessage.getText(), ((Message) read[4]).getText());
+        assertEquals("failure", ((Exception) read[5]).getMessage());
+        assertEquals(24914, ((DiscoveryData) read[6]).getPort());
+        assertEquals(RpcStatus.NOT_MODIFIED, read[7]);
+
+        UserData user = (UserData) RpcCodec.decode(RpcCodec.encode(mUser));
+        assertEquals(mUser.getUserName(), user.getUserName());
+        assertEquals(mUser.getStatus(), user.getStatus());
+        assertEquals(mUser.getAboutMe(), user.getAboutMe());
+        assertArrayEquals(mUser.getAvatarData(), user.getAvatarData());
+        assertEquals(mUser.getVersion(), user.getVersion());
+        assertNull(RpcCodec.decode(new byte[0]));
+    }
+
+    @Test
+    public void testEncodedResponse() {
+        System.out.println("encodedResponse");
+        RpcFrame request = RpcFrame.request(1, ConnectFor.PROFILE, new Object[]{3});
+        EncodedValue cached = EncodedValue.of(mUser);
+        assertEquals(RpcFrame.response(request, mUser).encode(),
+                RpcFrame.response(request, cached).encode());
+        UserData user = (UserData) RpcFrame.response(request, cached).getResult();
+        assertArrayEquals(mUser.getAvatarData(), user.getAvatarData());
+    }
+
+    @Test
+    public void testMessageRequest() throws Exception {
+        System.out.println("messageRequest");
+        RpcCodecBenchmark.Result result = RpcCodecBenchmark.run(ConnectFor.MESSAGE,
+                new Object[]{mMessage}, null, 100);
+        System.out.println("++" + result);
+        assertTrue(result.frameBytes < result.streamBytes);
+    }
+
+    @Test
+    public void testProfileRequest() throws Exception {
+        System.out.println("profileRequest");
+        RpcCodecBenchmark.Result result = RpcCodecBenchmark.run(ConnectFor.PROFILE,
+                new Object[]{3}, mUser, 100);
+        System.out.println("++" + result);
+        assertTrue(result.frameBytes < result.streamBytes);
+        // the avatar is carried as is, with a small overhead only
+        assertTrue(result.frameBytes < mUser.getAvatarData().length + 200);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.tuntuni.models.ConnectFor;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class RpcMetricsTest {
+
+    @Test
+    public void testHistogram() {
+        System.out.println("histogram");
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.5));
+        // 1 to 1000 microseconds
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i * 1000L);
+        }
+        assertWithin(500_000, histogram.percentile(0.5));
+        assertWithin(990_000, histogram.percentile(0.99));
+        assertWithin(999_000, histogram.percentile(0.999));
+        for (long value = 0; value < 1L << 40; value = value * 3 + 1) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.upperBound(index) >= value);
+        }
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        System.out.println("mbeans");
+        RpcMetrics.server().record(ConnectFor.STATE, 2000, 10, 20, false);
+        RpcMetrics.server().record(ConnectFor.STATE, 4000, 10, 20, true);
+        ObjectName name = new ObjectName("org.tuntuni:type=RpcMetrics,side=Server,op=STATE");
+        long count = (Long) ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(name, "RequestCount");
+        assertTrue(count >= 2);
+        assertTrue(RpcMetrics.server().get(ConnectFor.STATE).getErrorCount() >= 1);
+        System.out.println(RpcMetrics.server().dump());
+    }
+
+    // the reported value is at most one bucket above the real one
+    private void assertWithin(long expected, long actual) {
+        assertTrue(actual + " < " + expected, actual >= expected);
+        assertTrue(actual + " > " + expected, actual <= expected * 1.125);
+    }
+}
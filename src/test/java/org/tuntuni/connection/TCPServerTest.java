@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import org.tuntuni.models.ConnectFor;
+import org.tuntuni.models.UserData;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class TCPServerTest {
+
+    private TCPServer mServer;
+    private final AtomicInteger mProfileCount = new AtomicInteger();
+    // holds back the PROFILE replies until released by a test
+    private volatile CountDownLatch mProfileGate = new CountDownLatch(0);
+
+    public TCPServerTest() {
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new TCPServer("Test Server", null) {
+            @Override
+            Object getResponse(ConnectFor status, Socket socket, Object[] data) {
+                if (status == ConnectFor.PROFILE) {
+                    mProfileCount.incrementAndGet();
+                    try {
+                        mProfileGate.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                    }
+                    return new UserData("Test", "", "", null);
+                }
+                if (data.length > 0 && "slow".equals(data[0])) {
+                    sleep(300);
+                }
+                return data.length > 0 ? data[0] : status.toString();
+            }
+        };
+        mServer.start();
+        assertTrue(mServer.isOpen());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    private Client localClient() {
+        return new Client(new InetSocketAddress("127.0.0.1", mServer.getPort()));
+    }
+
+    @Test
+    public void testRequest() {
+        System.out.println("request");
+        Client client = localClient();
+        assertEquals("STATE", client.request(ConnectFor.STATE));
+        assertEquals("hello", client.request(ConnectFor.MESSAGE, "hello"));
+    }
+
+    @Test
+    public void testIdleConnections() throws IOException {
+        System.out.println("idleConnections");
+        // more idle peers than there are worker threads
+        int idle = TCPServer.MAX_EXECUTOR_THREAD * 50;
+        ArrayList<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < idle; ++i) {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress("127.0.0.1", mServer.getPort()));
+                sockets.add(socket);
+            }
+            long start = System.nanoTime();
+            Object result = localClient().request(ConnectFor.MESSAGE, 42);
+            long time = System.nanoTime() - start;
+            System.out.println("++idle=" + idle + " time=" + time / 1e6 + " ms");
+            assertEquals(42, result);
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        System.out.println("pipelinedRequests");
+        Client client = localClient();
+        int count = TCPClient.MAX_PIPELINED_REQUESTS * 10;
+        ArrayList<CompletableFuture<Object>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            futures.add(client.requestAsync(ConnectFor.MESSAGE, i));
+        }
+        for (int i = 0; i < count; ++i) {
+            assertEquals(i, futures.get(i).get());
+        }
+        long time = System.nanoTime() - start;
+        System.out.println("++count=" + count + " time=" + time / 1e6 + " ms");
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        System.out.println("rateLimit");
+        TCPServer limited = new TCPServer("Limited Server", null) {
+            @Override
+            Object getResponse(ConnectFor status, Socket socket, Object[] data) {
+                return status.toString();
+            }
+
+            @Override
+            int[] getRateLimit(ConnectFor type) {
+                return type == ConnectFor.MESSAGE ? new int[]{1, 5} : null;
+            }
+        };
+        limited.start();
+        try {
+            Client client = new Client(new InetSocketAddress("127.0.0.1", limited.getPort()));
+            ArrayList<CompletableFuture<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; ++i) {
+                futures.add(client.requestAsync(ConnectFor.MESSAGE));
+            }
+            int refused = 0;
+            for (CompletableFuture<Object> future : futures) {
+                if (future.get() instanceof Exception) {
+                    refused++;
+                }
+            }
+            System.out.println("++refused=" + refused);
+            assertTrue(refused >= 14);
+            assertEquals(refused, limited.getLimitedRequests());
+            assertEquals("STATE", client.request(ConnectFor.STATE));
+        } finally {
+            limited.stop();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        System.out.println("timeout");
+        Client client = localClient();
+        // keep all workers busy longer than the timeout
+        ArrayList<CompletableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < TCPServer.MAX_EXECUTOR_THREAD * 3; ++i) {
+            futures.add(client.requestAsync(100, ConnectFor.MESSAGE, "slow"));
+        }
+        int timedOut = 0;
+        for (CompletableFuture<Object> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof TimeoutException);
+                timedOut++;
+            }
+        }
+        assertEquals(futures.size(), timedOut);
+        // the ones waiting in the queue are not processed
+        assertEquals("hello", client.request(ConnectFor.MESSAGE, "hello"));
+        System.out.println("++dropped=" + mServer.getDroppedRequests());
+        assertTrue(mServer.getDroppedRequests() >= TCPServer.MAX_EXECUTOR_THREAD);
+
+        // a cancelled request does not complete
+        CompletableFuture<Object> cancelled = client.requestAsync(ConnectFor.MESSAGE, "slow");
+        assertTrue(cancelled.cancel(false));
+        assertEquals(42, client.request(ConnectFor.MESSAGE, 42));
+    }
+
+    @Test
+    public void testSingleFlightDownload() throws Exception {
+        System.out.println("singleFlightDownload");
+        Client client = localClient();
+        mProfileGate = new CountDownLatch(1);
+        ArrayList<CompletableFuture<UserData>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            futures.add(client.downloadProfileAsync(5));
+        }
+        // no reply can arrive before all the downloads are requested
+        mProfileGate.countDown();
+        for (CompletableFuture<UserData> future : futures) {
+            assertEquals("Test", future.get().getUserName());
+        }
+        assertEquals(1, mProfileCount.get());
+        assertEquals(5, client.getState());
+        // a later download is not shared
+        client.downloadProfileAsync(5).get();
+        assertEquals(2, mProfileCount.get());
+    }
+
+    @Test
+    public void testCallRequestAsync() throws Exception {
+        System.out.println("callRequestAsync");
+        Client client = localClient();
+        client.callRequestAsync(ConnectFor.CALL_RESPONSE, null).get();
+        try {
+            client.callRequestAsync(ConnectFor.CALL_RESPONSE, new Exception("busy")).join();
+            fail("Exception expected");
+        } catch (CompletionException ex) {
+            assertEquals("busy", ex.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testBusyPort() throws IOException {
+        System.out.println("busyPort");
+        try (ServerSocket busy = new ServerSocket(0)) {
+            // the next port is used when the first can not be bound
+            TCPServer server = new TCPServer("Test Server", new int[]{busy.getLocalPort(), 0}) {
+                @Override
+                Object getResponse(ConnectFor status, Socket socket, Object[] data) {
+                    return null;
+                }
+            };
+            server.initialize();
+            try {
+                assertTrue(server.isOpen());
+                assertTrue(server.getPort() != busy.getLocalPort());
+            } finally {
+                server.stop();
+            }
+
+            // no channel is kept when no port can be bound
+            server = new TCPServer("Test Server", new int[]{busy.getLocalPort()}) {
+                @Override
+                Object getResponse(ConnectFor status, Socket socket, Object[] data) {
+                    return null;
+                }
+            };
+            server.initialize();
+            try {
+                assertFalse(server.isOpen());
+            } finally {
+                server.stop();
+            }
+        }
+    }
+}
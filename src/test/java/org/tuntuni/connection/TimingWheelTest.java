@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.connection;
+
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class TimingWheelTest {
+
+    public TimingWheelTest() {
+    }
+
+    @Test
+    public void testExpire() {
+        System.out.println("expire");
+        TimingWheel<Integer> wheel = new TimingWheel<>(1000, 8, 0);
+        wheel.schedule(1, 2500);
+        wheel.schedule(2, 4500);
+        wheel.schedule(3, 3500);
+        assertTrue(wheel.advance(2000).isEmpty());
+        assertEquals(Arrays.asList(1), wheel.advance(3000));
+        wheel.remove(3);
+        assertTrue(wheel.advance(4000).isEmpty());
+        assertEquals(Arrays.asList(2), wheel.advance(5000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testExtend() {
+        System.out.println("extend");
+        TimingWheel<Integer> wheel = new TimingWheel<>(1000, 8, 0);
+        wheel.schedule(1, 2000);
+        wheel.schedule(1, 5000);
+        assertTrue(wheel.advance(4000).isEmpty());
+        wheel.schedule(1, 20_000);
+        // further than a turn of the wheel
+        assertTrue(wheel.advance(19_000).isEmpty());
+        assertEquals(1, wheel.size());
+        wheel.remove(1);
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.advance(30_000).isEmpty());
+
+        // an earlier deadline moves the key back
+        wheel.schedule(2, 50_000);
+        wheel.schedule(2, 32_000);
+        assertEquals(Collections.singletonList(2), wheel.advance(33_000));
+    }
+
+    @Test
+    public void testManyKeys() {
+        System.out.println("manyKeys");
+        TimingWheel<Integer> wheel = new TimingWheel<>(1000, 512, 0);
+        int count = 100_000;
+        for (int i = 0; i < count; ++i) {
+            wheel.schedule(i, 1000 + i * 10L);
+        }
+        int expired = 0;
+        for (long now = 0; now <= count * 10L + 1000; now += 1000) {
+            expired += wheel.advance(now).size();
+        }
+        assertEquals(count, expired);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -15,8 +15,11 @@
  */
 package org.tuntuni.models;
 
+import java.nio.ByteBuffer;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.tuntuni.util.Commons;
 
@@ -59,4 +62,35 @@ public class DiscoveryDataTest {
         assertEquals(dd.getState(), bd.getState());
     }
 
+    @Test
+    public void testDatagram() {
+        System.out.println("-testDiscoveryDataDatagram");
+        DiscoveryData dd = new DiscoveryData(24914);
+        dd.setState(7);
+        dd.setProfileVersion(1_466_000_000_123L);
+        dd.setProfileHash(0xCAFE);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        dd.write(buffer);
+        assertEquals(DiscoveryData.SIZE, buffer.position());
+        System.out.println("-- Size of datagram = " + buffer.position()
+                + ", object stream = " + Commons.toBytes(dd).length);
+        buffer.flip();
+
+        DiscoveryData bd = new DiscoveryData();
+        assertTrue(bd.read(buffer));
+        assertEquals(0, buffer.position());
+        assertEquals(dd.getPort(), bd.getPort());
+        assertEquals(dd.getState(), bd.getState());
+        assertEquals(dd.getProfileVersion(), bd.getProfileVersion());
+        assertEquals(dd.getProfileHash(), bd.getProfileHash());
+        assertTrue(bd.hasFlag(DiscoveryData.FLAG_PROFILE_HASH));
+        assertTrue(bd.hasFlag(DiscoveryData.FLAG_SUBSCRIBE));
+
+        // anything else is not read
+        buffer.put(0, (byte) 0);
+        assertFalse(bd.read(buffer));
+        assertFalse(bd.read(ByteBuffer.wrap(new byte[]{0x54, 0x4E, 1})));
+        assertFalse(bd.read(ByteBuffer.wrap(Commons.toBytes(dd))));
+    }
 }
@@ -87,4 +87,16 @@ public class PersistentTest {
         System.out.println();
     }
 
+    @Test
+    public void testChangeState() {
+        System.out.println("changeState");
+        PersistentImpl instance = new PersistentImpl();
+        long state = instance.getState();
+        instance.Int.setValue(7);
+        assertTrue(instance.getState() > state);
+        state = instance.getState();
+        instance.Str.setValue("Changed");
+        assertTrue(instance.getState() > state);
+    }
+
 }
@@ -79,4 +79,19 @@ public class UserDataTest {
         System.out.println();
     }
 
+    @Test
+    public void testMerge() {
+        System.out.println("merge");
+        UserData current = new UserData("Name", "Status", "About", new byte[]{1, 2});
+        current.setVersion(5);
+        UserData changes = new UserData(null, "Busy", null, null);
+        changes.setVersion(6);
+
+        UserData merged = current.merge(changes);
+        assertEquals("Name", merged.getUserName());
+        assertEquals("Busy", merged.getStatus());
+        assertEquals("About", merged.getAboutMe());
+        assertArrayEquals(new byte[]{1, 2}, merged.getAvatarData());
+        assertEquals(6, merged.getVersion());
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.util;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class BufferPoolTest {
+
+    public BufferPoolTest() {
+    }
+
+    @Test
+    public void testClasses() {
+        System.out.println("classes");
+        assertEquals(0, BufferPool.classOf(0));
+        assertEquals(0, BufferPool.classOf(256));
+        assertEquals(1, BufferPool.classOf(257));
+        assertEquals(1, BufferPool.classOf(512));
+        assertEquals(12, BufferPool.classOf(BufferPool.MAX_SIZE));
+
+        BufferPool pool = new BufferPool(false);
+        ByteBuffer buffer = pool.acquire(1000);
+        assertEquals(1024, buffer.capacity());
+        assertEquals(1000, buffer.limit());
+        assertFalse(buffer.isDirect());
+    }
+
+    @Test
+    public void testReuse() {
+        System.out.println("reuse");
+        BufferPool pool = new BufferPool(true);
+        ByteBuffer first = pool.acquire(3000);
+        assertTrue(first.isDirect());
+        pool.release(first);
+        ByteBuffer second = pool.acquire(2500);
+        assertSame(first, second);
+        assertEquals(2500, second.limit());
+        assertEquals(4096, pool.getAllocatedBytes());
+
+        // a buffer of another class or kind is not mixed in
+        pool.release(ByteBuffer.allocate(4096));
+        pool.release(ByteBuffer.allocateDirect(3000));
+        assertEquals(0, pool.getFreeCount());
+        assertNotSame(first, pool.acquire(3000));
+    }
+
+    @Test
+    public void testLimits() {
+        System.out.println("limits");
+        BufferPool pool = new BufferPool(false);
+        ByteBuffer large = pool.acquire(BufferPool.MAX_SIZE + 1);
+        assertEquals(BufferPool.MAX_SIZE + 1, large.capacity());
+        pool.release(large);
+        assertEquals(0, pool.getFreeCount());
+
+        ByteBuffer[] buffers = new ByteBuffer[BufferPool.MAX_FREE + 5];
+        for (int i = 0; i < buffers.length; ++i) {
+            buffers[i] = pool.acquire(100);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(BufferPool.MAX_FREE, pool.getFreeCount());
+    }
+}
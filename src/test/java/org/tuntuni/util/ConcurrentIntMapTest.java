@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.util;
+
+import java.util.HashMap;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class ConcurrentIntMapTest {
+
+    public ConcurrentIntMapTest() {
+    }
+
+    @Test
+    public void testPutRemove() {
+        System.out.println("putRemove");
+        ConcurrentIntMap<String> map = new ConcurrentIntMap<>();
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(-1, "broadcast"));
+        assertEquals("zero", map.put(0, "none"));
+        assertEquals(2, map.size());
+        assertEquals("none", map.get(0));
+        assertEquals("broadcast", map.remove(-1));
+        assertNull(map.remove(-1));
+        assertNull(map.get(-1));
+        assertEquals(1, map.values().size());
+    }
+
+    @Test
+    public void testSameAsHashMap() {
+        System.out.println("sameAsHashMap");
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<>();
+        HashMap<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(7);
+        // addresses of a few subnets
+        for (int i = 0; i < 200_000; ++i) {
+            int key = (0xC0A80000 + random.nextInt(4096));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (int key : expected.keySet()) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(expected.size(), map.values().size());
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        System.out.println("concurrent");
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final int base = t << 20;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50_000; ++i) {
+                    map.put(base + i, i);
+                }
+                for (int i = 0; i < 50_000; i += 2) {
+                    map.remove(base + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * 25_000, map.size());
+        assertEquals(Integer.valueOf(1), map.get((3 << 20) + 1));
+        assertNull(map.get(3 << 20));
+    }
+}
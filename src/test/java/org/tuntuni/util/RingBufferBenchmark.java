@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.tuntuni.util.RingBuffer.DropPolicy;
+
+/**
+ * Compares the {@link RingBuffer} with the queue {@code StreamClient} used
+ * before: a {@link LinkedList} guarded by its monitor, with
+ * {@code wait}/{@code notify}.
+ * <p>
+ * Two things are measured with one producer and one consumer thread. The
+ * cost of a hand-off when the producer runs flat out, and the delay from
+ * adding an item to taking it when items come at a steady rate, like audio
+ * packets. Each run is repeated, and the first is taken as warm up.</p>
+ * <p>
+ * Run it with the number of items and the packets per second, e.g.
+ * {@code java org.tuntuni.util.RingBufferBenchmark 2000000 1000}.</p>
+ */
+public class RingBufferBenchmark {
+
+    public static final int CAPACITY = 64;
+    public static final int ROUNDS = 3;
+
+    /**
+     * The queue under test, seen the way {@code StreamClient} uses it.
+     */
+    interface Queue {
+
+        void send(Long item);
+
+        Long next() throws InterruptedException;
+    }
+
+    /**
+     * Same as the old {@code StreamClient.send} and {@code getNext}.
+     */
+    static class LockedQueue implements Queue {
+
+        private final LinkedList<Long> mList = new LinkedList<>();
+
+        @Override
+        public void send(Long item) {
+            synchronized (mList) {
+                mList.add(item);
+                if (mList.size() > CAPACITY) {
+                    mList.remove();
+                }
+                mList.notify();
+            }
+        }
+
+        @Override
+        public Long next() throws InterruptedException {
+            synchronized (mList) {
+                if (mList.isEmpty()) {
+                    mList.wait(1000);
+                }
+                return mList.poll();
+            }
+        }
+    }
+
+    static class RingQueue implements Queue {
+
+        private final RingBuffer<Long> mRing = new RingBuffer<>(CAPACITY, DropPolicy.DROP_OLDEST);
+
+        @Override
+        public void send(Long item) {
+            mRing.offer(item);
+        }
+
+        @Override
+        public Long next() throws InterruptedException {
+            return mRing.poll(1000, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The measurements of a queue.
+     */
+    public static class Result {
+
+        public String name;
+        public double throughputNanos;
+        public double latencyMicros;
+        public long received;
+
+        @Override
+        public String toString() {
+            return String.format("%-12s hand-off=%.1f ns latency=%.1f us received=%d",
+                    name, throughputNanos, latencyMicros, received);
+        }
+    }
+
+    /**
+     * Runs both queues.
+     *
+     * @param items items to pass at full speed
+     * @param rate packets per second for the latency
+     * @param seconds how long to measure the latency
+     * @return the results of the old queue and of the ring buffer
+     * @throws InterruptedException
+     */
+    public static Result[] run(int items, int rate, double seconds)
+            throws InterruptedException {
+        Result locked = null;
+        Result ring = null;
+        for (int i = 0; i < ROUNDS; ++i) {
+            locked = measure("LinkedList", new LockedQueue(), items, rate, seconds);
+            ring = measure("RingBuffer", new RingQueue(), items, rate, seconds);
+        }
+        return new Result[]{locked, ring};
+    }
+
+    private static Result measure(String name, Queue queue, int items, int rate,
+            double seconds) throws InterruptedException {
+        Result result = new Result();
+        result.name = name;
+
+        // full speed: the producer never waits, the consumer takes what it can
+        long[] received = new long[1];
+        Thread consumer = new Thread(() -> {
+            try {
+                Long item;
+                while ((item = queue.next()) != null && item >= 0) {
+                    received[0]++;
+                }
+            } catch (InterruptedException ex) {
+            }
+        });
+        consumer.start();
+        long start = System.nanoTime();
+        for (long i = 0; i < items; ++i) {
+            queue.send(i);
+        }
+        queue.send(-1L);
+        consumer.join();
+        result.throughputNanos = (double) (System.nanoTime() - start) / items;
+        result.received = received[0];
+
+        // steady rate: time from sending to taking each item
+        int count = (int) (rate * seconds);
+        long period = 1_000_000_000L / rate;
+        long[] latency = new long[1];
+        consumer = new Thread(() -> {
+            try {
+                Long item;
+                while ((item = queue.next()) != null && item >= 0) {
+                    latency[0] += System.nanoTime() - item;
+                }
+            } catch (InterruptedException ex) {
+            }
+        });
+        consumer.start();
+        long next = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            next += period;
+            while (System.nanoTime() < next) {
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+            queue.send(System.nanoTime());
+        }
+        queue.send(-1L);
+        consumer.join();
+        result.latencyMicros = latency[0] / 1000.0 / Math.max(1, count);
+        return result;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        for (Result result : run(items, rate, 2.0)) {
+            System.out.println(result);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Tuntuni.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tuntuni.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.tuntuni.util.RingBuffer.DropPolicy;
+
+/**
+ *
+ * @author Sudipto Chandra
+ */
+public class RingBufferTest {
+
+    public RingBufferTest() {
+    }
+
+    @Test
+    public void testDropOldest() {
+        System.out.println("dropOldest");
+        RingBuffer<Integer> ring = new RingBuffer<>(5, DropPolicy.DROP_OLDEST);
+        for (int i = 0; i < 12; ++i) {
+            assertTrue(ring.offer(i));
+        }
+        assertEquals(5, ring.size());
+        assertEquals(7, ring.getDropped());
+        for (int i = 7; i < 12; ++i) {
+            assertEquals(i, (int) ring.poll());
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testDropNewest() {
+        System.out.println("dropNewest");
+        RingBuffer<Integer> ring = new RingBuffer<>(3, DropPolicy.DROP_NEWEST);
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(3));
+        assertEquals(1, ring.getDropped());
+        assertEquals(0, (int) ring.poll());
+        assertTrue(ring.offer(4));
+        assertEquals(1, (int) ring.poll());
+        assertEquals(2, (int) ring.poll());
+        assertEquals(4, (int) ring.poll());
+    }
+
+    @Test
+    public void testCoalesceLatest() {
+        System.out.println("coalesceLatest");
+        RingBuffer<Integer> ring = new RingBuffer<>(4, DropPolicy.COALESCE_LATEST);
+        ring.offer(1);
+        ring.offer(2);
+        ring.offer(3);
+        assertEquals(1, ring.size());
+        assertEquals(3, (int) ring.poll());
+        assertEquals(2, ring.getDropped());
+        ring.offer(4);
+        ring.clear();
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void testOnDrop() {
+        System.out.println("onDrop");
+        List<Integer> dropped = new ArrayList<>();
+        RingBuffer<Integer> ring = new RingBuffer<>(3, DropPolicy.DROP_OLDEST, dropped::add);
+        for (int i = 0; i < 5; ++i) {
+            ring.offer(i);
+        }
+        assertEquals(Arrays.asList(0, 1), dropped);
+        ring.clear();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), dropped);
+
+        dropped.clear();
+        ring = new RingBuffer<>(1, DropPolicy.DROP_NEWEST, dropped::add);
+        ring.offer(5);
+        assertFalse(ring.offer(6));
+        assertEquals(Arrays.asList(6), dropped);
+
+        dropped.clear();
+        ring = new RingBuffer<>(4, DropPolicy.COALESCE_LATEST, dropped::add);
+        ring.offer(7);
+        ring.offer(8);
+        assertEquals(Arrays.asList(7), dropped);
+        assertEquals(8, (int) ring.poll());
+    }
+
+    @Test(timeout = 5000)
+    public void testWait() throws InterruptedException {
+        System.out.println("wait");
+        RingBuffer<Integer> ring = new RingBuffer<>(2, DropPolicy.DROP_OLDEST);
+        assertNull(ring.poll(20, TimeUnit.MILLISECONDS));
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+            }
+            ring.offer(7);
+        });
+        producer.start();
+        assertEquals(7, (int) ring.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 20000)
+    public void testHandOff() throws InterruptedException {
+        System.out.println("handOff");
+        RingBufferBenchmark.Result[] results = RingBufferBenchmark.run(200_000, 1000, 0.2);
+        for (RingBufferBenchmark.Result result : results) {
+            System.out.println("++" + result);
+        }
+        // a full queue only drops items, it never makes more
+        for (RingBufferBenchmark.Result result : results) {
+            assertTrue(result.received > 0);
+            assertTrue(result.received <= 200_000);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testOrder() throws InterruptedException {
+        System.out.println("order");
+        int count = 500_000;
+        RingBuffer<Integer> ring = new RingBuffer<>(16, DropPolicy.DROP_OLDEST);
+        int[] state = {-1, 0};
+        Thread consumer = new Thread(() -> {
+            try {
+                Integer item;
+                while ((item = ring.poll(1, TimeUnit.SECONDS)) != null && item >= 0) {
+                    if (item <= state[0]) {
+                        state[1]++;
+                    }
+                    state[0] = item;
+                }
+            } catch (InterruptedException ex) {
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; ++i) {
+            ring.offer(i);
+        }
+        ring.offer(-1);
+        consumer.join();
+        // never out of order, and the last item is never dropped
+        assertEquals(0, state[1]);
+        assertEquals(count - 1, state[0]);
+    }
+}